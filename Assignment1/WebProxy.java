@@ -1,148 +1,5221 @@
 import java.net.*;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 import java.io.*;
+import java.lang.reflect.Method;
 
 public class WebProxy {
 	private static final int SERVER_PORT = 80;
 	private static final int BUFFER_SIZE = 40960;
-	
+
+	/** Maximum number of client connections served at the same time **/
+	private static final int MAX_CONNECTIONS = Integer.getInteger("proxy.maxConnections", 1024);
+
+	/** Timeouts (ms) for idle clients, connecting to and reading from the server **/
+	private static final int CLIENT_TIMEOUT = Integer.getInteger("proxy.clientTimeout", 30000);
+	private static final int CONNECT_TIMEOUT = Integer.getInteger("proxy.connectTimeout", 5000);
+	private static final int SERVER_TIMEOUT = Integer.getInteger("proxy.serverTimeout", 30000);
+
+	/** Engine serving connections: "threads" (default) or "nio" **/
+	private static final String ENGINE = System.getProperty("proxy.engine", "threads");
+	private static final int EVENT_LOOPS = Integer.getInteger("proxy.eventLoops", Runtime.getRuntime().availableProcessors());
+
+	/** Replies sent when a request cannot be relayed. They all close the connection. **/
+	private static final byte[] BAD_REQUEST = errorResponse("400 Bad Request");
+	private static final byte[] LENGTH_REQUIRED = errorResponse("411 Length Required");
+	private static final byte[] BAD_GATEWAY = errorResponse("502 Bad Gateway");
+
+	/** Body lengths for messages not framed by a Content-Length **/
+	private static final long CHUNKED = -2;
+	private static final long UNTIL_CLOSE = -1;
+
+	/** Smallest text worth compressing in the cache, and room for a chunk size line **/
+	private static final int MIN_COMPRESS_SIZE = 1024;
+	private static final int CHUNK_HEADER_SIZE = 10;
+
+	/** Range requested beyond the end of a response **/
+	private static final long[] UNSATISFIABLE = new long[0];
+
+	/** Headers describing only one connection, never forwarded **/
+	private static final String[] HOP_BY_HOP = { "Connection", "Proxy-Connection", "Keep-Alive", "TE", "Trailer",
+			"Upgrade" };
+
+	/** Bytes read from a stream at a time while looking for the end of a head **/
+	private static final int HEAD_BLOCK_SIZE = 2048;
+
 	/** Port for the proxy */
 	private static int port;
-	
+
 	/** Socket for client connections */
 	private static ServerSocket serverSocket;
 
+	/** Byte budget of the in-memory tier and the largest response it keeps **/
+	private static final long MEMORY_CACHE_SIZE = Long.getLong("proxy.memoryCacheSize", 64L * 1024 * 1024);
+	private static final int MEMORY_OBJECT_SIZE = Integer.getInteger("proxy.memoryObjectSize", 1024 * 1024);
+
 	/** Cache **/
-	private static HashMap<String, String> cache = new HashMap<String, String>();
-	
-	public static void main(String args[]) throws IOException {	
+	private static ConcurrentHashMap<String, CacheEntry> cache = new ConcurrentHashMap<String, CacheEntry>();
+
+	/** Responses of which only some byte ranges have been fetched so far. They
+	 *  live outside the index, so only MAX_PARTIALS are kept, each of at most
+	 *  its share of the disk budget, and none survives a restart. **/
+	private static final int MAX_PARTIALS = Integer.getInteger("proxy.maxPartials", 64);
+	private static ConcurrentHashMap<String, PartialEntry> partials = new ConcurrentHashMap<String, PartialEntry>();
+
+	/** Log of the cache's entries, replayed on startup **/
+	private static final String CACHE_INDEX = System.getProperty("proxy.cacheIndex", "cache.index");
+	private static CacheIndex cacheIndex;
+
+	/** Directory holding the cached files, and the bytes they may take up on disk **/
+	private static final String CACHE_DIR = System.getProperty("proxy.cacheDir", "cache");
+	private static final long DISK_CACHE_SIZE = Long.getLong("proxy.diskCacheSize", 1024L * 1024 * 1024);
+	private static AtomicLong cacheFiles = new AtomicLong();
+	private static DiskEvictor diskEvictor = new DiskEvictor(DISK_CACHE_SIZE);
+
+	/** Hot tier holding whole response bodies in front of the files in cache **/
+	private static MemoryCache memoryCache = new MemoryCache(MEMORY_CACHE_SIZE, MEMORY_OBJECT_SIZE);
+
+	/** Statuses cached without explicit freshness, and the longest heuristic lifetime (ms) **/
+	private static final Set<Integer> CACHEABLE_STATUSES = new HashSet<Integer>(Arrays.asList(200, 203, 300, 301, 404, 410));
+	private static final long HEURISTIC_LIFETIME = 24L * 60 * 60 * 1000;
+
+	/** Responses being fetched for the cache, which later requests for the same URI wait on,
+	 *  and the bytes of their bodies all of them may hold for those requests **/
+	private static final long FILL_BUFFER_SIZE = Long.getLong("proxy.fillBufferSize", 64L * 1024 * 1024);
+	private static AtomicLong fillBytes = new AtomicLong();
+	private static ConcurrentHashMap<String, Fill> fills = new ConcurrentHashMap<String, Fill>();
+
+	/** Largest amount of a response waiting to be written to its cache file,
+	 *  the bytes all responses being cached may hold for that, and the thread
+	 *  that puts complete files in place, compresses them and records them in
+	 *  the index, away from the threads serving clients **/
+	private static final int WRITE_BEHIND_SIZE = Integer.getInteger("proxy.writeBehindSize", 4 * 1024 * 1024);
+	private static final long WRITE_BEHIND_BUDGET = Long.getLong("proxy.writeBehindBudget", 64L * 1024 * 1024);
+	private static AtomicLong writeBehindBytes = new AtomicLong();
+	private static ExecutorService cacheStorer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, "cache-storer");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/** Idle server connections kept for reuse **/
+	private static final int POOL_MAX_PER_HOST = Integer.getInteger("proxy.poolMaxPerHost", 64);
+	private static final int POOL_MAX_IDLE_PER_HOST = Integer.getInteger("proxy.poolMaxIdlePerHost", 16);
+	private static final int POOL_IDLE_TIMEOUT = Integer.getInteger("proxy.poolIdleTimeout", 30000);
+	private static ConnectionPool connectionPool = new ConnectionPool(POOL_MAX_PER_HOST, POOL_MAX_IDLE_PER_HOST,
+			POOL_IDLE_TIMEOUT, CONNECT_TIMEOUT);
+
+	/** Cached DNS answers and circuit breakers for the servers connected to **/
+	private static final long DNS_TTL = Long.getLong("proxy.dnsTtl", 60000);
+	private static final long DNS_NEGATIVE_TTL = Long.getLong("proxy.dnsNegativeTtl", 5000);
+	private static final int DNS_CACHE_ENTRIES = 10000;
+	private static final int CIRCUIT_FAILURES = Integer.getInteger("proxy.circuitFailures", 3);
+	private static final long CIRCUIT_OPEN_TIME = Long.getLong("proxy.circuitOpenTime", 5000);
+	private static final long MAX_CIRCUIT_OPEN_TIME = 60000;
+	private static OriginGuard origins = new OriginGuard(DNS_TTL, DNS_NEGATIVE_TTL, CIRCUIT_FAILURES,
+			CIRCUIT_OPEN_TIME);
+
+	/** Metrics, served on the admin path, and the sampled access log **/
+	private static final String ADMIN_PATH = System.getProperty("proxy.adminPath", "/_proxy/metrics");
+	private static final double ACCESS_LOG_SAMPLE = Double.parseDouble(System.getProperty("proxy.accessLogSample",
+			"0.01"));
+	private static final int ACCESS_LOG_QUEUE = 8192;
+	private static Metrics metrics = new Metrics();
+	private static AccessLog accessLog = new AccessLog(ACCESS_LOG_SAMPLE);
+
+	/** Workers serving accepted connections, and permits bounding connections in flight **/
+	private static ExecutorService executor;
+	private static Semaphore connectionPermits = new Semaphore(MAX_CONNECTIONS);
+
+	public static void main(String args[]) throws IOException {
 		/** Read port number as command-line argument **/
 		port = Integer.parseInt(args[0]);
-		
-		/** Create a server socket, bind it to a port and start listening **/
-		serverSocket = new ServerSocket(port);
-	
+
+		/** Pick up what was cached before the last restart **/
+		cacheIndex = CacheIndex.open(new File(CACHE_INDEX), cache);
+		System.out.println("Loaded " + cache.size() + " cached responses");
+		int leftovers = removeLeftovers(new File(CACHE_DIR));
+		if (leftovers > 0) {
+			System.out.println("Removed " + leftovers + " unfinished cache files");
+		}
+		for (CacheEntry entry : cache.values()) {
+			diskEvictor.added(entry.length);
+		}
+		diskEvictor.start();
+		accessLog.start();
+
+		if (ENGINE.equals("nio")) {
+			new NioEngine(port, EVENT_LOOPS).run();
+			return;
+		}
+
+		/** Create a server socket, bind it to a port and start listening.
+		 *  Opened as a channel so accepted sockets can take file transfers. **/
+		ServerSocketChannel serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(port));
+		serverSocket = serverChannel.socket();
+		executor = createExecutor();
+		connectionPool.startEvictor();
+
 		runProxy();
 	}
-	
-	private static void runProxy() throws IOException{
-		Socket client = null;
-		
-		/** Main loop. Listen for incoming connections **/
+
+	/**
+	 * Uses one virtual thread per connection when the runtime has them,
+	 * otherwise a pool of platform threads as large as the connection limit.
+	 */
+	private static ExecutorService createExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newFixedThreadPool(MAX_CONNECTIONS);
+		}
+	}
+
+	private static void runProxy() throws IOException {
+		/** Main loop. Listen for incoming connections and hand them to a worker **/
 		while (true)
 		{
-			String URI = null;	
-			int length = 0;
-			
-			byte[] request = new byte[BUFFER_SIZE];
-			
+			connectionPermits.acquireUninterruptibly();
+			Socket client = null;
+
 			try {
 				client = serverSocket.accept();
-				System.out.println("Received a connection from: " + client);
-
-				/** Read client's HTTP request **/
-				InputStream fromClient = client.getInputStream();
-				length = fromClient.read(request);
-				
-				String firstLine = new String(request);
-				String[] tmp = firstLine.split(" ");
-				
-				URI = tmp[1];
-			} catch (IOException e) {
-				System.out.println("Error reading request from client: " + e);
-				/* Definitely cannot continue, so skip to next
-				 * iteration of while loop. */
-				continue;
+				executor.execute(new ClientHandler(client));
+			} catch (IOException e) {
+				System.out.println("Error accepting connection: " + e);
+				connectionPermits.release();
+			} catch (RejectedExecutionException e) {
+				System.out.println("Error dispatching connection: " + e);
+				closeQuietly(client);
+				connectionPermits.release();
+			}
+		}
+	}
+
+	/**
+	 * Serves a single client connection on a worker thread.
+	 */
+	private static class ClientHandler implements Runnable {
+		private final Socket client;
+
+		ClientHandler(Socket client) {
+			this.client = client;
+		}
+
+		@Override
+		public void run() {
+			try {
+				client.setSoTimeout(CLIENT_TIMEOUT);
+				handleClient(client);
+			} catch (IOException e) {
+				System.out.println("Error serving client: " + e);
+			} catch (RuntimeException e) {
+				System.out.println("Error handling request: " + e);
+			} finally {
+				closeQuietly(client);
+				connectionPermits.release();
+			}
+		}
+	}
+
+	/**
+	 * Serves requests from one client connection until either side asks to
+	 * close it. Requests are read one after another from a buffered stream,
+	 * so pipelined requests simply wait in the buffer for their turn.
+	 */
+	private static void handleClient(Socket client) throws IOException {
+		InputStream fromClient = new BufferedInputStream(client.getInputStream(), BUFFER_SIZE);
+		RequestMeter meter = new RequestMeter(client.getOutputStream(), String.valueOf(client.getRemoteSocketAddress()));
+		OutputStream toClient = new BufferedOutputStream(meter, BUFFER_SIZE);
+		boolean keepAlive = true;
+
+		metrics.connectionOpened();
+		try {
+			while (keepAlive) {
+				HttpHead request;
+
+				try {
+					/** Read client's HTTP request **/
+					request = HttpHead.read(fromClient);
+				} catch (SocketTimeoutException e) {
+					return;	// Idle keep-alive connection
+				} catch (IllegalArgumentException e) {
+					metrics.badRequest();
+					toClient.write(BAD_REQUEST);
+					toClient.flush();
+					return;
+				}
+
+				if (request == null) {
+					return;
+				}
+
+				meter.start();
+				try {
+					keepAlive = serveRequest(client, request, fromClient, toClient, meter);
+				} finally {
+					meter.finish(request);
+				}
+			}
+		} finally {
+			metrics.connectionClosed();
+		}
+	}
+
+	/**
+	 * Answers one request from the cache or the server. Returns whether the
+	 * client connection can carry another request afterwards.
+	 */
+	private static boolean serveRequest(Socket client, HttpHead request, InputStream fromClient,
+			OutputStream toClient, RequestMeter meter) throws IOException {
+		String URI = request.uri();
+		URI uri;
+
+		if (isAdminRequest(client.getInetAddress(), request)) {
+			meter.setOutcome(Outcome.ADMIN);
+			toClient.write(metricsResponse(isPersistent(request)));
+			toClient.flush();
+			return isPersistent(request);
+		}
+
+		try {
+			uri = new URI(URI);
+		} catch (URISyntaxException e) {
+			uri = null;
+		}
+
+		if (uri == null || uri.getHost() == null) {
+			metrics.badRequest();
+			meter.setOutcome(Outcome.ERROR);
+			toClient.write(BAD_REQUEST);
+			toClient.flush();
+			return false;
+		}
+
+		int port = uri.getPort();
+		String method = request.method();
+		boolean keepAlive = isPersistent(request);
+
+		if (port == -1) {
+			port = SERVER_PORT;
+		}
+
+		/** Check cache if a fresh copy exists **/
+		boolean lookup = (method.equals("GET") || method.equals("HEAD")) && requestBodyLength(request) == 0;
+		CacheEntry entry = lookup ? cache.get(URI) : null;
+		if (entry != null && !entry.canServe(request)) {
+			entry = null;	// Another variant, which the response to this request replaces
+		}
+
+		meter.setOutcome(Outcome.HIT);
+		if (entry != null && entry.isFresh(System.currentTimeMillis()) && !requiresRevalidation(request)
+				&& serveFromCache(client, toClient, meter, URI, entry, request, keepAlive)) {
+			return keepAlive;
+		}
+
+		/** A range may be answered, at least in part, from the parts of the
+		 *  response fetched for earlier ranges **/
+		PartialEntry partial = isRangeGet(request) ? partials.get(URI) : null;
+		if (partial != null && partial.entry().isFresh(System.currentTimeMillis()) && partial.entry().canServe(request)
+				&& !requiresRevalidation(request)) {
+			meter.setOutcome(Outcome.PARTIAL_HIT);
+			Boolean served = serveFromPartial(client, toClient, meter, request, partial, uri, port, keepAlive);
+			if (served != null) {
+				return served;
+			}
+		}
+
+		/** Collapse concurrent misses for the same URI onto one server request **/
+		Fill fill = null;
+		if (isPlainGet(request)) {
+			fill = new Fill();
+			Fill leader = fills.putIfAbsent(URI, fill);
+
+			if (leader != null) {
+				fill = null;
+				Fill.Reader reader = leader.join();
+				if (reader != null) {
+					meter.setOutcome(Outcome.COALESCED);
+					Boolean served = serveFromFill(toClient, leader, reader, request, keepAlive);
+					if (served != null) {
+						return served;
+					}
+
+					/** The leader may have revalidated the cached copy instead **/
+					entry = cache.get(URI);
+					if (entry != null && entry.isFresh(System.currentTimeMillis()) && entry.canServe(request)
+							&& serveFromCache(client, toClient, meter, URI, entry, request, keepAlive)) {
+						return keepAlive;
+					}
+				}
+			}
+		}
+
+		/** A stale copy with a validator is revalidated rather than fetched again **/
+		CacheEntry stale = (fill != null && entry != null && entry.hasValidator()) ? entry : null;
+
+		meter.setOutcome(Outcome.MISS);
+		try {
+			return serveFromServer(client, request, fromClient, toClient, meter, uri, port, keepAlive, fill, stale);
+		} finally {
+			if (fill != null) {
+				fill.abandon();
+				fills.remove(URI, fill);
+			}
+		}
+	}
+
+	/**
+	 * Sends a gzipped cached response to a client that does not take gzip,
+	 * decoding it on the way out into a chunked body.
+	 */
+	private static void serveDecoded(OutputStream toClient, CacheEntry entry, byte[] hot, File file,
+			HttpHead request, boolean keepAlive) throws IOException {
+		toClient.write(entry.decodedHead(keepAlive).toBytes());
+
+		if (!request.method().equals("HEAD")) {
+			InputStream stored = (hot != null) ? new ByteArrayInputStream(hot) : new FileInputStream(file);
+			InputStream decoded = new GZIPInputStream(stored, BUFFER_SIZE);
+			ChunkedOutputStream body = new ChunkedOutputStream(toClient);
+
+			try {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int read = decoded.read(buffer);
+				while (read != -1) {
+					body.write(buffer, 0, read);
+					read = decoded.read(buffer);
+				}
+			} finally {
+				decoded.close();
+			}
+			body.finish();
+		}
+
+		toClient.flush();
+	}
+
+	/**
+	 * Answers a range from the parts of a response kept so far, asking the
+	 * server only for whatever follows them. Returns null, before anything
+	 * is sent, when they cannot help, so the caller forwards the request as
+	 * it is.
+	 */
+	private static Boolean serveFromPartial(Socket client, OutputStream toClient, RequestMeter meter,
+			HttpHead request, PartialEntry partial, URI uri, int port, boolean keepAlive) throws IOException {
+		CacheEntry entry = partial.entry();
+		long[] range = requestedRange(request, entry);
+		if (range == null) {
+			return null;
+		}
+		if (range == UNSATISFIABLE) {
+			toClient.write(rangeNotSatisfiable(entry.length, keepAlive));
+			toClient.flush();
+			return keepAlive;
+		}
+
+		long end = range[1] + 1;
+		long kept = Math.min(partial.keptFrom(range[0]), end);
+		if (kept == range[0]) {
+			return null;
+		}
+
+		FileChannel fromFile;
+		try {
+			fromFile = FileChannel.open(partial.file().toPath(), StandardOpenOption.READ);
+		} catch (IOException e) {
+			return null;	// Completed or discarded meanwhile
+		}
+
+		PooledConnection upstream = null;
+		HttpHead response = null;
+		boolean reusable = false;
+
+		try {
+			try {
+				if (kept < end) {
+					/** Fetch the rest of the range, as long as the server's copy is unchanged **/
+					HttpHead forward = rewriteRequest(request, uri, "HTTP/1.1");
+					forward.set("Range", "bytes=" + kept + "-" + range[1]);
+					forward.set("If-Range", partial.validator());
+
+					try {
+						upstream = connectionPool.lease(uri.getHost(), port, false);
+						sendRequest(upstream, forward, null, 0);
+						response = readResponseHead(upstream.in);
+					} catch (IOException e) {
+						return null;
+					}
+
+					long[] part = contentRange(response);
+					if (response.status() != 206 || part == null || part[0] != kept || part[1] != range[1]
+							|| !partial.matches(response)) {
+						return null;
+					}
+				}
+
+				toClient.write(rangeHead(entry, range, keepAlive).toBytes());
+				toClient.flush();
+				transferFile(fromFile, range[0], kept - range[0], client.getChannel());
+				meter.sent(kept - range[0]);
+			} finally {
+				fromFile.close();
+			}
+
+			if (response == null) {
+				return keepAlive;
+			}
+
+			/** Relay the rest from the server, keeping it with the other parts **/
+			try {
+				InputStream fromServer = new BodyInputStream(upstream.in, responseBodyLength("GET", response));
+				byte[] buffer = new byte[BUFFER_SIZE];
+				long position = kept;
+				int read = fromServer.read(buffer);
+
+				while (read != -1) {
+					partial.write(position, buffer, 0, read);
+					toClient.write(buffer, 0, read);
+					toClient.flush();
+					position += read;
+					read = fromServer.read(buffer);
+				}
+			} catch (IOException e) {
+				return false;
+			}
+
+			reusable = isPersistent(response);
+			partial.commitIfComplete();
+			return keepAlive;
+		} finally {
+			/** The server connection goes back however this ends, reusable
+			 *  only once its response has been read to the end **/
+			if (upstream != null) {
+				connectionPool.release(upstream, reusable);
+			}
+		}
+	}
+
+	/**
+	 * Streams a response another request is fetching. Returns null if that
+	 * response cannot be shared, so the caller fetches its own.
+	 */
+	private static Boolean serveFromFill(OutputStream toClient, Fill fill, Fill.Reader reader, HttpHead request,
+			boolean keepAlive) throws IOException {
+		try {
+			HttpHead head;
+
+			try {
+				head = fill.awaitHead();
+			} catch (IOException e) {
+				return null;	// Leader failed before responding, try on our own
+			}
+
+			if (head == null) {
+				return null;
+			}
+
+			/** Another variant of the response, or a coding this client does not take **/
+			String encoding = head.get("Content-Encoding");
+			if (!varyKey(request, head).equals(fill.varyKey())
+					|| (encoding != null && !encoding.equalsIgnoreCase("identity") && !acceptsCoding(request, encoding))) {
+				return null;
+			}
+
+			long length = fill.length();
+			boolean chunked = chunkBody(request, length);
+			keepAlive = keepAlive && (length >= 0 || chunked);
+
+			head = head.copy();
+			if (length >= 0) {
+				head.set("Content-Length", Long.toString(length));
+			} else if (chunked) {
+				head.set("Transfer-Encoding", "chunked");
+			}
+			head.set("Connection", keepAlive ? "keep-alive" : "close");
+			toClient.write(head.toBytes());
+
+			OutputStream body = chunked ? new ChunkedOutputStream(toClient) : toClient;
+			byte[] chunk = fill.awaitChunk(reader);
+
+			while (chunk != null) {
+				body.write(chunk);
+				toClient.flush();
+				chunk = fill.awaitChunk(reader);
+			}
+
+			if (chunked) {
+				((ChunkedOutputStream) body).finish();
+			}
+			toClient.flush();
+			return keepAlive;
+		} finally {
+			fill.leave(reader);
+		}
+	}
+
+	/**
+	 * Sends a cached response, or the range of it the request asks for, or
+	 * returns false if its file has disappeared.
+	 */
+	private static boolean serveFromCache(Socket client, OutputStream toClient, RequestMeter meter, String URI,
+			CacheEntry entry, HttpHead request, boolean keepAlive) throws IOException {
+		byte[] hot = entry.hotBody();
+		File file = new File(entry.filename);
+
+		if (hot == null && !file.exists()) {
+			removeFromCache(URI, entry);
+			return false;
+		}
+		entry.touch();
+
+		if (entry.needsDecoding(request)) {
+			serveDecoded(toClient, entry, hot, file, request, keepAlive);
+			return true;
+		}
+
+		long[] range = requestedRange(request, entry);
+		if (range == UNSATISFIABLE) {
+			toClient.write(rangeNotSatisfiable(entry.length, keepAlive));
+			toClient.flush();
+			return true;
+		}
+
+		/** Generate appropriate respond headers and send the file contents **/
+		long start = (range == null) ? 0 : range[0];
+		long count = (range == null) ? entry.length : range[1] - range[0] + 1;
+		HttpHead head = (range == null) ? entry.responseHead(keepAlive) : rangeHead(entry, range, keepAlive);
+		toClient.write(head.toBytes());
+
+		if (request.method().equals("HEAD")) {
+			// Headers only
+		} else if (hot != null) {
+			toClient.write(hot, (int) start, (int) count);
+		} else if (range != null || entry.length > MEMORY_OBJECT_SIZE) {
+			/** A range, or too large for the memory tier: send that part of the
+			 *  file without copying it through the heap **/
+			toClient.flush();
+			FileChannel fromFile = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			try {
+				transferFile(fromFile, start, count, client.getChannel());
+				meter.sent(count);
+			} finally {
+				fromFile.close();
 			}
-			
-			//System.out.println("request: \r\n" + new String(request));
-			
-			/** Check cache if file exists **/
-			URI uri = java.net.URI.create(URI);
-			int port = uri.getPort();
-			String hostname = uri.getHost();
-			String filename = (hostname + uri.getPath()).replaceAll("/", "%");
-			File file;
-			boolean cacheExist = false;
-			
-			if (cache.containsKey(URI)) {
-				file = new File(cache.get(URI));
-				cacheExist = file.exists();
-			}
-			
-			
-			if (cacheExist) {
-				/** Read the file **/
-				//System.out.println("CACHING");
-				file = new File(cache.get(URI));
-				OutputStream toClient = client.getOutputStream();
-				FileInputStream fromFile = new FileInputStream(file);
-				
+		} else {
+			/** Read the file **/
+			FileInputStream fromFile = new FileInputStream(file);
+			HotCopy hotCopy = new HotCopy();
+
+			try {
 				byte[] buffer = new byte[BUFFER_SIZE];
-				length = fromFile.read(buffer);
-				
-				/** Generate appropriate respond headers and send the file contents **/
+				int length = fromFile.read(buffer);
+
 				while (length != -1) {
 					toClient.write(buffer, 0, length);
+					hotCopy.write(buffer, 0, length);
 					length = fromFile.read(buffer);
 				}
-				
+			} finally {
 				fromFile.close();
-				toClient.close();
-				
+			}
+			hotCopy.promote(entry);
+		}
+
+		toClient.flush();
+		return true;
+	}
+
+	/**
+	 * Relays a request to the server and its response back to the client,
+	 * caching the body as it goes.
+	 */
+	private static boolean serveFromServer(Socket client, HttpHead request, InputStream fromClient,
+			OutputStream toClient, RequestMeter meter, URI uri, int port, boolean keepAlive, Fill fill, CacheEntry stale)
+			throws IOException {
+		String URI = request.uri();
+		String hostname = uri.getHost();
+		String method = request.method();
+		long requestLength = requestBodyLength(request);
+		PooledConnection upstream = null;
+		HttpHead response;
+
+		HttpHead forward = rewriteRequest(request, uri, "HTTP/1.1");
+		if (fill != null) {
+			restrictCodings(forward, request);
+		}
+		addValidators(forward, stale);
+		long requestTime = System.currentTimeMillis();
+
+		try {
+			/** Connect to server and relay client's request. A pooled connection
+			 *  may have been closed by the server meanwhile, so retry once. **/
+			upstream = connectionPool.lease(hostname, port, false);
+
+			try {
+				sendRequest(upstream, forward, fromClient, requestLength);
+				response = readResponseHead(upstream.in);
+			} catch (IOException e) {
+				if (!upstream.reused || requestLength != 0) {
+					throw e;
+				}
+
+				connectionPool.release(upstream, false);
+				upstream = connectionPool.lease(hostname, port, true);
+				sendRequest(upstream, forward, fromClient, requestLength);
+				response = readResponseHead(upstream.in);
+			}
+		} catch (IOException e) {
+			if (upstream != null) {
+				connectionPool.release(upstream, false);
+			}
+			toClient.write(BAD_GATEWAY);
+			toClient.flush();
+			return false;
+		}
+
+		/** From here on the connection goes back to the pool however this
+		 *  ends, and only as reusable once the whole response is read **/
+		boolean reusable = false;
+
+		try {
+			long responseTime = System.currentTimeMillis();
+
+			if (stale != null && response.status() == 304) {
+				/** Still valid, refresh the cached copy's metadata and serve it **/
+				connectionPool.release(upstream, isPersistent(response));
+				upstream = null;
+				CacheEntry refreshed = stale.revalidated(response, requestTime, responseTime);
+				replaceInCache(URI, stale, refreshed);
+
+				meter.setOutcome(Outcome.REVALIDATED);
+				if (serveFromCache(client, toClient, meter, URI, refreshed, request, keepAlive)) {
+					return keepAlive;
+				}
+				toClient.write(BAD_GATEWAY);
+				toClient.flush();
+				return false;
+			}
+
+			String filename = cacheFilename(URI, varyKey(request, response));
+			boolean cacheable = (fill != null) && isCacheable(request, response);
+			if (!cacheable && fill != null) {
+				/** Waiting requests fetch their own copy of an uncacheable response **/
+				fill.abandon();
+				removeFromCache(URI);
+			}
+
+			/** Parts of a response fetched by range are kept to answer later ranges,
+			 *  unless the file for them cannot be made, which leaves the relay as is **/
+			PartialEntry partial = null;
+			if (fill == null && request.get("Range") != null) {
+				try {
+					partial = PartialEntry.forResponse(URI, filename, request, response, requestTime, responseTime);
+				} catch (IOException e) {
+					System.out.println("Error opening partial cache file: " + e);
+				}
+			}
+			long partStart = (partial != null) ? contentRange(response)[0] : 0;
+
+			/** Frame the response for the client, chunking it if its length is unknown **/
+			long length = responseBodyLength(method, response);
+			boolean chunked = chunkBody(request, length);
+			HttpHead head = response.copy();
+			head.setVersion("HTTP/1.1");
+			stripHopByHop(head);
+			head.remove("Transfer-Encoding");
+
+			if (length == 0) {
+				// No body follows; a HEAD response keeps the length it describes
+			} else if (length > 0) {
+				head.set("Content-Length", Long.toString(length));
+			} else if (chunked) {
+				head.set("Transfer-Encoding", "chunked");
 			} else {
+				keepAlive = false;
+			}
+			head.set("Connection", keepAlive ? "keep-alive" : "close");
+
+			/** Get response from server, send it to client and cache it. Only the
+			 *  request leading a fill writes the cache, behind the relay, into a
+			 *  temporary file that replaces the cached one when complete. **/
+			WriteBehind toFile = cacheable ? WriteBehind.open(new File(filename), length) : null;
+			final HotCopy hotCopy = new HotCopy();
+			long total = 0;
+
+			if (toFile != null) {
+				fill.start(cacheHead(response), length, varyKey(request, response));
+			} else if (cacheable) {
+				/** No cache file to write, so relay it uncached and let waiting requests fetch their own **/
+				fill.abandon();
+			}
+
+			/** A leader whose client goes away keeps reading the response for
+			 *  as long as the cache file or requests that joined still take it **/
+			boolean clientGone = false;
+
+			try {
+				InputStream fromServer = new BodyInputStream(upstream.in, length);
+				OutputStream body = chunked ? new ChunkedOutputStream(toClient) : toClient;
+
 				try {
-					if (port == -1) {
-						port = SERVER_PORT;
-					}
-					
-					/** Connect to server and relay client's request **/
-					Socket server = new Socket(hostname, port);
-					OutputStream toServer = server.getOutputStream();
-					toServer.write(request, 0, length);
-					
-					/** Get response from server, send it to client and cache it**/
-					file = new File(filename);
-					InputStream fromServer = server.getInputStream();
-					OutputStream toClient = client.getOutputStream();
-					FileOutputStream toFile = new FileOutputStream(file);
-					
-					byte[] buffer = new byte[BUFFER_SIZE];
-					length = fromServer.read(buffer);
-					
-					while (length != -1) {
-						toFile.write(buffer, 0, length);
-						toClient.write(buffer, 0, length);
-						
-						toFile.flush();
-						toClient.flush();
-						length = fromServer.read(buffer);
-					}
-					
-					cache.put(URI, filename);
-					
-					fromServer.close();
-					toClient.close();
-					toFile.close();
-					
-					/** Close sockets **/
-					client.close();
-					server.close();
-					
-				} catch (UnknownHostException e) {
-					OutputStream toClient = client.getOutputStream();
-					String error = "HTTP/1.0 502 Bad Gateway\n";
-					toClient.write(error.getBytes());
-					
-					toClient.close();
+					toClient.write(head.toBytes());
 				} catch (IOException e) {
-					OutputStream toClient = client.getOutputStream();
-					String error = "HTTP/1.0 502 Bad Gateway\n";
-					toClient.write(error.getBytes());
-					
-					toClient.close();
+					clientGone = true;
+				}
+
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int read = fromServer.read(buffer);
+
+				while (read != -1) {
+					if (toFile != null) {
+						toFile.write(buffer, 0, read);
+						fill.append(buffer, 0, read);
+					}
+					if (partial != null) {
+						partial.write(partStart + total, buffer, 0, read);
+					}
+					hotCopy.write(buffer, 0, read);
+
+					if (!clientGone) {
+						try {
+							body.write(buffer, 0, read);
+							toClient.flush();
+						} catch (IOException e) {
+							clientGone = true;
+						}
+					}
+					if (clientGone && (toFile == null || toFile.isDropped())
+							&& (fill == null || !fill.isFollowed())) {
+						return false;	// Nothing takes the rest, so neither is the connection reused
+					}
+
+					total += read;
+					read = fromServer.read(buffer);
+				}
+
+				if (!clientGone) {
+					try {
+						if (chunked) {
+							((ChunkedOutputStream) body).finish();
+						}
+						toClient.flush();
+					} catch (IOException e) {
+						clientGone = true;
+					}
 				}
+			} catch (IOException e) {
+				/** The server failed partway, so all we can do is close **/
+				closeQuietly(toFile);
+				return false;
+			}
+
+			if (toFile != null) {
+				final CacheEntry entry = new CacheEntry(filename, cacheHead(response), total, varyKey(request, response),
+						requestTime, responseTime);
+				toFile.finish(new Runnable() {
+					@Override
+					public void run() {
+						storeResponse(URI, entry, hotCopy);
+					}
+				});
+				fill.finish();
+			}
+			if (partial != null) {
+				partial.commitIfComplete();
+			}
+
+			reusable = (length != UNTIL_CLOSE) && isPersistent(response);
+			return keepAlive && !clientGone;
+		} finally {
+			if (upstream != null) {
+				connectionPool.release(upstream, reusable);
+			}
+		}
+	}
+
+	private static void sendRequest(PooledConnection upstream, HttpHead forward, InputStream fromClient, long requestLength)
+			throws IOException {
+		upstream.out.write(forward.toBytes());
+
+		if (requestLength != 0) {
+			InputStream body = new BodyInputStream(fromClient, requestLength);
+			OutputStream toServer = (requestLength == CHUNKED) ? new ChunkedOutputStream(upstream.out) : upstream.out;
+
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int read = body.read(buffer);
+			while (read != -1) {
+				toServer.write(buffer, 0, read);
+				read = body.read(buffer);
+			}
+
+			if (requestLength == CHUNKED) {
+				((ChunkedOutputStream) toServer).finish();
+			}
+		}
+
+		upstream.out.flush();
+	}
+
+	/**
+	 * Reads the final response head, skipping interim 1xx responses.
+	 */
+	private static HttpHead readResponseHead(InputStream fromServer) throws IOException {
+		while (true) {
+			HttpHead response;
+
+			try {
+				response = HttpHead.read(fromServer);
+			} catch (IllegalArgumentException e) {
+				throw new IOException("Malformed response: " + e.getMessage());
+			}
+
+			if (response == null) {
+				throw new EOFException("Server closed the connection");
+			}
+
+			int status = response.status();
+			if (status < 100 || status >= 200 || status == 101) {
+				return response;
 			}
 		}
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Keeps idle server connections open, keyed by host and port, so that
+	 * requests to the same server skip the TCP handshake. Each server gets
+	 * at most MAX_PER_HOST connections in use at once; further requests wait
+	 * for one to be released.
+	 */
+	static class ConnectionPool {
+		private final int maxPerHost;
+		private final int maxIdlePerHost;
+		private final long idleTimeout;
+		private final long waitTimeout;
+		private final ConcurrentHashMap<String, HostPool> hosts = new ConcurrentHashMap<String, HostPool>();
+
+		private final AtomicLong leases = new AtomicLong();
+		private final AtomicLong created = new AtomicLong();
+		private final AtomicLong reused = new AtomicLong();
+		private final AtomicLong discarded = new AtomicLong();
+		private final AtomicLong waitNanos = new AtomicLong();
+		private final AtomicLong maxWaitNanos = new AtomicLong();
+
+		ConnectionPool(int maxPerHost, int maxIdlePerHost, long idleTimeout, long waitTimeout) {
+			this.maxPerHost = maxPerHost;
+			this.maxIdlePerHost = maxIdlePerHost;
+			this.idleTimeout = idleTimeout;
+			this.waitTimeout = waitTimeout;
+		}
+
+		/**
+		 * Closes connections that have been idle for too long. Runs in the
+		 * background every few seconds.
+		 */
+		void startEvictor() {
+			ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "pool-evictor");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+			long period = Math.max(idleTimeout / 2, 1000);
+			evictor.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					evictIdle();
+				}
+			}, period, period, TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		 * Hands out an idle connection to the server that still looks healthy,
+		 * or opens a new one. With fresh set, idle connections are skipped.
+		 */
+		PooledConnection lease(String hostname, int port, boolean fresh) throws IOException {
+			origins.check(hostname, port);
+
+			String key = hostname + ":" + port;
+			HostPool host = hosts.get(key);
+			if (host == null) {
+				hosts.putIfAbsent(key, new HostPool(maxPerHost));
+				host = hosts.get(key);
+			}
+
+			long start = System.nanoTime();
+			try {
+				if (!host.permits.tryAcquire(waitTimeout, TimeUnit.MILLISECONDS)) {
+					throw new SocketTimeoutException("No free connection to " + key);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for " + key);
+			}
+
+			long waited = System.nanoTime() - start;
+			waitNanos.addAndGet(waited);
+			if (waited > maxWaitNanos.get()) {
+				maxWaitNanos.set(waited);
+			}
+			leases.incrementAndGet();
+
+			while (!fresh) {
+				PooledConnection connection = host.poll();
+				if (connection == null) {
+					break;
+				}
+
+				if (connection.isHealthy(idleTimeout)) {
+					connection.reused = true;
+					reused.incrementAndGet();
+					return connection;
+				}
+				connection.close();
+				discarded.incrementAndGet();
+			}
+
+			try {
+				PooledConnection connection = new PooledConnection(key, host);
+				connection.connect(hostname, port);
+				created.incrementAndGet();
+				return connection;
+			} catch (IOException e) {
+				host.permits.release();
+				throw e;
+			}
+		}
+
+		/**
+		 * Returns a leased connection. It is kept for reuse only if the last
+		 * exchange left it in a clean state and there is room for it.
+		 */
+		void release(PooledConnection connection, boolean reusable) {
+			HostPool host = connection.host;
+
+			if (!reusable || !host.offer(connection, maxIdlePerHost)) {
+				connection.close();
+				if (reusable) {
+					discarded.incrementAndGet();
+				}
+			}
+			host.permits.release();
+		}
+
+		void evictIdle() {
+			for (HostPool host : hosts.values()) {
+				for (PooledConnection connection : host.expired(idleTimeout)) {
+					connection.close();
+					discarded.incrementAndGet();
+				}
+			}
+		}
+
+		int idle() {
+			int idle = 0;
+			for (HostPool host : hosts.values()) {
+				idle += host.size();
+			}
+			return idle;
+		}
+
+		@Override
+		public String toString() {
+			long count = Math.max(leases.get(), 1);
+			return "connection pool: " + idle() + " idle, " + leases.get() + " leases, " + created.get() + " created, "
+					+ reused.get() + " reused, " + discarded.get() + " discarded, mean wait "
+					+ (waitNanos.get() / count / 1000) + " us, max wait " + (maxWaitNanos.get() / 1000) + " us";
+		}
+	}
+
+	/**
+	 * Idle connections to one server, most recently used first.
+	 */
+	private static class HostPool {
+		private final Semaphore permits;
+		private final ArrayDeque<PooledConnection> idle = new ArrayDeque<PooledConnection>();
+
+		HostPool(int maxPerHost) {
+			permits = new Semaphore(maxPerHost, true);
+		}
+
+		synchronized PooledConnection poll() {
+			return idle.pollFirst();
+		}
+
+		synchronized boolean offer(PooledConnection connection, int maxIdle) {
+			if (idle.size() >= maxIdle) {
+				return false;
+			}
+			connection.idleSince = System.currentTimeMillis();
+			idle.addFirst(connection);
+			return true;
+		}
+
+		synchronized ArrayList<PooledConnection> expired(long idleTimeout) {
+			ArrayList<PooledConnection> expired = new ArrayList<PooledConnection>();
+			long now = System.currentTimeMillis();
+
+			while (!idle.isEmpty() && now - idle.peekLast().idleSince > idleTimeout) {
+				expired.add(idle.pollLast());
+			}
+			return expired;
+		}
+
+		synchronized int size() {
+			return idle.size();
+		}
+	}
+
+	/**
+	 * A server connection leased from the pool. It is opened through a
+	 * channel so the health check can peek at it without blocking.
+	 */
+	private static class PooledConnection {
+		private final String key;
+		private final HostPool host;
+		private SocketChannel channel;
+		private InputStream in;
+		private OutputStream out;
+		private long idleSince;
+		private boolean reused = false;
+
+		PooledConnection(String key, HostPool host) {
+			this.key = key;
+			this.host = host;
+		}
+
+		void connect(String hostname, int port) throws IOException {
+			InetSocketAddress address = origins.admit(hostname, port);
+			channel = SocketChannel.open();
+			try {
+				channel.socket().connect(address, CONNECT_TIMEOUT);
+				channel.socket().setSoTimeout(SERVER_TIMEOUT);
+			} catch (IOException e) {
+				origins.failed(hostname, port);
+				close();
+				throw e;
+			}
+			origins.connected(hostname, port);
+
+			in = new BufferedInputStream(channel.socket().getInputStream(), BUFFER_SIZE);
+			out = new BufferedOutputStream(channel.socket().getOutputStream(), BUFFER_SIZE);
+		}
+
+		/**
+		 * An idle connection is healthy if it has not expired and the server
+		 * has neither closed it nor sent anything unasked.
+		 */
+		boolean isHealthy(long idleTimeout) {
+			if (!channel.isOpen() || System.currentTimeMillis() - idleSince > idleTimeout) {
+				return false;
+			}
+
+			try {
+				if (in.available() > 0) {
+					return false;
+				}
+
+				channel.configureBlocking(false);
+				try {
+					return channel.read(ByteBuffer.allocate(1)) == 0;
+				} finally {
+					channel.configureBlocking(true);
+				}
+			} catch (IOException e) {
+				return false;
+			}
+		}
+
+		void close() {
+			closeQuietly(channel);
+		}
+
+		@Override
+		public String toString() {
+			return key;
+		}
+	}
+
+	/**
+	 * What the proxy knows about the servers it connects to: their addresses,
+	 * cached for a while so that DNS is not asked on every connect, and
+	 * whether they are up.
+	 *
+	 * A name that does not resolve is remembered as such for a few seconds.
+	 * A server that fails several connects in a row has its circuit opened:
+	 * requests for it fail at once, without waiting on a connect timeout,
+	 * until the circuit has been open for a while. Then one request is let
+	 * through to try it; the circuit closes if that connects and stays open
+	 * twice as long if it does not.
+	 */
+	static class OriginGuard {
+		private final long dnsTtl;
+		private final long negativeTtl;
+		private final int failureThreshold;
+		private final long openTime;
+		private final ConcurrentHashMap<String, Resolution> addresses = new ConcurrentHashMap<String, Resolution>();
+		private final ConcurrentHashMap<String, Circuit> circuits = new ConcurrentHashMap<String, Circuit>();
+		private final AtomicLong rejected = new AtomicLong();
+
+		OriginGuard(long dnsTtl, long negativeTtl, int failureThreshold, long openTime) {
+			this.dnsTtl = dnsTtl;
+			this.negativeTtl = negativeTtl;
+			this.failureThreshold = failureThreshold;
+			this.openTime = openTime;
+		}
+
+		/**
+		 * Fails if requests for the server are being turned away, before
+		 * anything is spent on them.
+		 */
+		void check(String hostname, int port) throws IOException {
+			Resolution resolution = addresses.get(hostname);
+			if (resolution != null && resolution.address == null
+					&& System.currentTimeMillis() < resolution.expires) {
+				rejected.incrementAndGet();
+				throw new UnknownHostException(hostname);
+			}
+
+			Circuit circuit = circuits.get(hostname + ":" + port);
+			if (circuit != null && !circuit.allows(false)) {
+				rejected.incrementAndGet();
+				throw new ConnectException("Circuit open for " + hostname + ":" + port);
+			}
+		}
+
+		/**
+		 * Address to open a connection to, if the server may be tried. The
+		 * caller must report how the connect went.
+		 */
+		InetSocketAddress admit(String hostname, int port) throws IOException {
+			InetAddress address = resolve(hostname);
+
+			Circuit circuit = circuits.get(hostname + ":" + port);
+			if (circuit != null && !circuit.allows(true)) {
+				rejected.incrementAndGet();
+				throw new ConnectException("Circuit open for " + hostname + ":" + port);
+			}
+			return new InetSocketAddress(address, port);
+		}
+
+		/**
+		 * Whether the name's address, or its failure to resolve, is cached,
+		 * so admit will not wait on DNS.
+		 */
+		boolean isResolved(String hostname) {
+			Resolution resolution = addresses.get(hostname);
+			return resolution != null && System.currentTimeMillis() < resolution.expires;
+		}
+
+		/**
+		 * Looks a name up and caches the answer, whatever it is.
+		 */
+		void lookUp(String hostname) {
+			try {
+				resolve(hostname);
+			} catch (UnknownHostException e) {
+				// Cached as unknown for admit to report
+			}
+		}
+
+		void connected(String hostname, int port) {
+			Circuit circuit = circuits.get(hostname + ":" + port);
+			if (circuit != null) {
+				circuit.connected(openTime);
+			}
+		}
+
+		void failed(String hostname, int port) {
+			String key = hostname + ":" + port;
+			Circuit circuit = circuits.get(key);
+			if (circuit == null) {
+				circuits.putIfAbsent(key, new Circuit(openTime));
+				circuit = circuits.get(key);
+			}
+
+			long opened = circuit.failed(failureThreshold);
+			if (opened > 0) {
+				System.out.println("Circuit to " + key + " open for " + opened + " ms");
+			}
+		}
+
+		private InetAddress resolve(String hostname) throws UnknownHostException {
+			long now = System.currentTimeMillis();
+			Resolution resolution = addresses.get(hostname);
+
+			if (resolution == null || now >= resolution.expires) {
+				InetAddress address;
+				try {
+					address = InetAddress.getByName(hostname);
+				} catch (UnknownHostException e) {
+					address = null;
+				}
+
+				if (addresses.size() >= DNS_CACHE_ENTRIES) {
+					/** Drop whatever has expired before adding more **/
+					for (Map.Entry<String, Resolution> entry : addresses.entrySet()) {
+						if (now >= entry.getValue().expires) {
+							addresses.remove(entry.getKey(), entry.getValue());
+						}
+					}
+				}
+
+				resolution = new Resolution(address, now + ((address != null) ? dnsTtl : negativeTtl));
+				addresses.put(hostname, resolution);
+			}
+
+			if (resolution.address == null) {
+				throw new UnknownHostException(hostname);
+			}
+			return resolution.address;
+		}
+
+		int openCircuits() {
+			int open = 0;
+			for (Circuit circuit : circuits.values()) {
+				if (circuit.isOpen(failureThreshold)) {
+					open++;
+				}
+			}
+			return open;
+		}
+
+		@Override
+		public String toString() {
+			return "origins: " + addresses.size() + " names cached, " + openCircuits() + " circuits open, "
+					+ rejected.get() + " requests failed fast";
+		}
+	}
+
+	/**
+	 * A cached DNS answer, or the lack of one when address is null.
+	 */
+	private static class Resolution {
+		final InetAddress address;
+		final long expires;
+
+		Resolution(InetAddress address, long expires) {
+			this.address = address;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * Consecutive connect failures to one server, and how long its circuit
+	 * stays open once they reach the threshold.
+	 */
+	private static class Circuit {
+		private int failures = 0;
+		private long openTime;
+		private long openUntil = 0;
+		private boolean trying = false;
+
+		Circuit(long openTime) {
+			this.openTime = openTime;
+		}
+
+		/**
+		 * Whether a connect may be tried. Once the circuit has been open long
+		 * enough, the first caller that is going to connect is let through
+		 * and everyone else is turned away until it reports back.
+		 */
+		synchronized boolean allows(boolean connecting) {
+			if (openUntil == 0) {
+				return true;
+			}
+			if (trying || System.currentTimeMillis() < openUntil) {
+				return false;
+			}
+			if (connecting) {
+				trying = true;
+			}
+			return true;
+		}
+
+		synchronized void connected(long initialOpenTime) {
+			failures = 0;
+			openTime = initialOpenTime;
+			openUntil = 0;
+			trying = false;
+		}
+
+		/**
+		 * Counts a failure, returning how long the circuit was opened for
+		 * if this opened it, or 0.
+		 */
+		synchronized long failed(int threshold) {
+			failures++;
+			if (trying) {
+				trying = false;
+				openTime = Math.min(openTime * 2, MAX_CIRCUIT_OPEN_TIME);
+			} else if (failures != threshold) {
+				return 0;
+			}
+
+			openUntil = System.currentTimeMillis() + openTime;
+			return openTime;
+		}
+
+		synchronized boolean isOpen(int threshold) {
+			return failures >= threshold;
+		}
+	}
+
+	/**
+	 * Alternative engine that serves every connection from a few selector
+	 * loops instead of a thread per connection. Each loop owns its own
+	 * listening channel when SO_REUSEPORT is available so the kernel spreads
+	 * accepts across loops; otherwise all loops share one listening channel.
+	 * Client connections are kept alive, but every request opens a fresh
+	 * server connection and asks for HTTP/1.0 with Connection: close; server
+	 * connections are only reused by the threaded engine's ConnectionPool.
+	 */
+	private static class NioEngine {
+		private final int port;
+		private final EventLoop[] loops;
+
+		NioEngine(int port, int loopCount) {
+			this.port = port;
+			this.loops = new EventLoop[Math.max(1, loopCount)];
+		}
+
+		void run() throws IOException {
+			ServerSocketChannel shared = null;
+
+			for (int i = 0; i < loops.length; i++) {
+				ServerSocketChannel acceptor = ServerSocketChannel.open();
+
+				if (acceptor.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+					acceptor.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+					acceptor.bind(new InetSocketAddress(port));
+				} else {
+					acceptor.close();
+					if (shared == null) {
+						shared = ServerSocketChannel.open();
+						shared.bind(new InetSocketAddress(port));
+					}
+					acceptor = shared;
+				}
+
+				acceptor.configureBlocking(false);
+				loops[i] = new EventLoop(acceptor);
+			}
+
+			for (int i = 1; i < loops.length; i++) {
+				Thread thread = new Thread(loops[i], "event-loop-" + i);
+				thread.start();
+			}
+			loops[0].run();
+		}
+	}
+
+	/**
+	 * A selector loop relaying requests and responses for the connections it
+	 * accepted. Relay buffers are direct and recycled between connections.
+	 * Every SWEEP_INTERVAL (ms) the loop closes connections that have waited
+	 * on the client or the server for longer than the blocking engine's
+	 * socket timeouts would allow.
+	 */
+	private static class EventLoop implements Runnable {
+		private static final int SWEEP_INTERVAL = 1000;
+		private static final int RESOLVERS = 4;
+
+		/** Threads looking up names not yet in the DNS cache, which would hold
+		 *  up every connection on a loop, shared by all the loops **/
+		private static final ExecutorService resolver = Executors.newFixedThreadPool(RESOLVERS, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "resolver");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		private final Selector selector;
+		private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<ByteBuffer>();
+		private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		private long nextSweep = 0;
+
+		EventLoop(ServerSocketChannel acceptor) throws IOException {
+			selector = Selector.open();
+			acceptor.register(selector, SelectionKey.OP_ACCEPT);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				try {
+					selector.select(SWEEP_INTERVAL);
+				} catch (IOException e) {
+					System.out.println("Error selecting: " + e);
+					continue;
+				}
+
+				for (Runnable task; (task = tasks.poll()) != null;) {
+					task.run();
+				}
+
+				long now = System.currentTimeMillis();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					if (key.isValid() && key.isAcceptable()) {
+						accept((ServerSocketChannel) key.channel(), now);
+						continue;
+					}
+
+					NioConnection connection = (NioConnection) key.attachment();
+					connection.lastActive = now;
+					try {
+						connection.handle(key);
+					} catch (IOException e) {
+						connection.fail(e);
+					} catch (RuntimeException e) {
+						connection.fail(e);
+					}
+				}
+
+				if (now >= nextSweep) {
+					sweep(now);
+					nextSweep = now + SWEEP_INTERVAL;
+				}
+			}
+		}
+
+		/**
+		 * Runs a task on this loop, from another thread.
+		 */
+		private void post(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		/**
+		 * Expires the connections that have been waiting too long.
+		 */
+		private void sweep(long now) {
+			for (SelectionKey key : selector.keys()) {
+				Object attachment = key.attachment();
+				if (!(attachment instanceof NioConnection) || key != ((NioConnection) attachment).clientKey) {
+					continue;	// The acceptor, or a connection's origin key
+				}
+
+				NioConnection connection = (NioConnection) attachment;
+				if (key.isValid() && now - connection.lastActive >= connection.timeout()) {
+					connection.expire();
+				}
+			}
+		}
+
+		private void accept(ServerSocketChannel acceptor, long now) {
+			try {
+				SocketChannel client = acceptor.accept();
+				if (client == null) {
+					return;	// Another loop sharing the channel took it
+				}
+
+				client.configureBlocking(false);
+				/** A response's head and body go out in separate writes, which
+				 *  must not wait on the client's delayed ACK of the head **/
+				client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				NioConnection connection = new NioConnection(client);
+				connection.lastActive = now;
+				connection.clientKey = client.register(selector, SelectionKey.OP_READ, connection);
+				metrics.connectionOpened();
+			} catch (IOException e) {
+				System.out.println("Error accepting connection: " + e);
+			}
+		}
+
+		private ByteBuffer takeBuffer() {
+			ByteBuffer buffer = buffers.poll();
+			if (buffer == null) {
+				buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			}
+			buffer.clear();
+			return buffer;
+		}
+
+		private void returnBuffer(ByteBuffer buffer) {
+			if (buffer != null) {
+				buffers.push(buffer);
+			}
+		}
+
+		/**
+		 * State of one client connection and, on a miss, its origin
+		 * connection. The client connection is kept alive across requests;
+		 * the origin is asked for an HTTP/1.0 response and closed afterwards,
+		 * so its end of stream always marks the end of the response.
+		 */
+		private class NioConnection {
+			private final SocketChannel client;
+			private SocketChannel origin;
+			private SelectionKey clientKey;
+			private SelectionKey originKey;
+
+			/** Bytes read from the client and not yet handled, in write mode,
+			 *  and how far into them the next request's head has been parsed.
+			 *  The buffer is taken from the pool when bytes arrive and given
+			 *  back once they are all handled, so idle connections hold none. **/
+			private ByteBuffer request;
+			private final HeadParser requestParser = new HeadParser();
+			private int requestParsed = 0;
+
+			/** Response head and body waiting to be written to the client **/
+			private ByteBuffer head;
+			private ByteBuffer response;
+			private FileChannel fromFile;
+			private long filePosition = 0;
+			private long fileEnd = 0;
+			private InputStream decoder;
+			private boolean decoderDone = false;
+			private boolean zeroCopy = false;
+
+			/** Request forwarded to the origin and its response **/
+			private ByteBuffer forward;
+			private long requestRemaining = 0;
+			private boolean headParsed = false;
+			private final HeadParser responseParser = new HeadParser();
+			private int responseParsed = 0;
+			private HttpHead originHead;
+			private long bodyLength = 0;
+			private long bodyReceived = 0;
+			private boolean originDone = false;
+			private WriteBehind toFile;
+			private HotCopy hotCopy;
+			private CacheEntry served;
+
+			private String URI;
+			private String originHost;
+			private int originPort;
+			private String method;
+			private String filename;
+			private HttpHead requestHead;
+			private CacheEntry stale;
+			private long requestTime;
+			private boolean keepAlive = false;
+			private boolean plainGet = false;
+			private boolean busy = false;
+			private boolean responseStarted = false;
+
+			/** When either side last made progress, for the idle sweep **/
+			private long lastActive = 0;
+			private boolean closed = false;
+
+			/** Measurements of the current request **/
+			private long requestStart = 0;
+			private long firstByteAt = 0;
+			private long bytesSent = 0;
+			private int status = 0;
+			private Outcome outcome;
+
+			NioConnection(SocketChannel client) {
+				this.client = client;
+			}
+
+			void handle(SelectionKey key) throws IOException {
+				if (key == clientKey) {
+					if (key.isValid() && key.isReadable()) {
+						readFromClient();
+					}
+					if (key.isValid() && key.isWritable()) {
+						writeToClient();
+					}
+				} else {
+					if (key.isValid() && key.isConnectable()) {
+						finishConnect();
+					}
+					if (key.isValid() && key.isWritable()) {
+						writeRequest();
+					}
+					if (key.isValid() && key.isReadable()) {
+						readResponse();
+					}
+				}
+			}
+
+			private void readFromClient() throws IOException {
+				if (request == null) {
+					request = takeBuffer();
+				}
+
+				int length = client.read(request);
+				if (length == -1) {
+					if (busy) {
+						throw new EOFException("Client closed during request");
+					}
+					close();
+					return;
+				}
+
+				if (!busy) {
+					processRequest();
+				} else if (requestRemaining > 0) {
+					/** More of the request body to forward **/
+					clientKey.interestOps(0);
+					originKey.interestOps(SelectionKey.OP_WRITE);
+				}
+			}
+
+			/**
+			 * Starts on the next request if its whole header has arrived. Only
+			 * the bytes that arrived since the last call are parsed.
+			 */
+			private void processRequest() throws IOException {
+				requestParsed = requestParser.parse(request, requestParsed, request.position());
+				if (!requestParser.isComplete()) {
+					if (!request.hasRemaining()) {
+						metrics.badRequest();
+						client.write(ByteBuffer.wrap(BAD_REQUEST));
+						close();
+						return;
+					}
+
+					if (request.position() == 0) {
+						returnBuffer(request);
+						request = null;
+					}
+					clientKey.interestOps(SelectionKey.OP_READ);
+					return;
+				}
+
+				requestHead = requestParser.head();
+				consume(requestParsed);
+				requestParser.reset();
+				requestParsed = 0;
+				busy = true;
+				clientKey.interestOps(0);
+
+				URI = requestHead.uri();
+				method = requestHead.method();
+				keepAlive = isPersistent(requestHead);
+				plainGet = isPlainGet(requestHead);
+				requestStart = System.nanoTime();
+				outcome = Outcome.MISS;
+
+				if (isAdminRequest(client.socket().getInetAddress(), requestHead)) {
+					outcome = Outcome.ADMIN;
+					head = ByteBuffer.wrap(metricsResponse(keepAlive));
+					writeToClient();
+					return;
+				}
+
+				URI uri = java.net.URI.create(URI);
+				int port = uri.getPort();
+				String hostname = uri.getHost();
+
+				if (hostname == null) {
+					throw new IllegalArgumentException("Not an absolute URI: " + URI);
+				}
+
+				requestRemaining = requestBodyLength(requestHead);
+				if (requestRemaining == CHUNKED) {
+					outcome = Outcome.ERROR;
+					status = 411;
+					sent(client.write(ByteBuffer.wrap(LENGTH_REQUIRED)));
+					record();
+					close();
+					return;
+				}
+
+				boolean lookup = (method.equals("GET") || method.equals("HEAD")) && requestRemaining == 0;
+				CacheEntry entry = lookup ? cache.get(URI) : null;
+				if (entry != null && !entry.canServe(requestHead)) {
+					entry = null;	// Another variant, which the response to this request replaces
+				}
+
+				outcome = Outcome.HIT;
+				if (entry != null && entry.isFresh(System.currentTimeMillis()) && !requiresRevalidation(requestHead)
+						&& serveFromCache(entry)) {
+					return;
+				}
+				outcome = Outcome.MISS;
+
+				/** A stale copy with a validator is revalidated rather than fetched again **/
+				stale = (plainGet && entry != null && entry.hasValidator()) ? entry : null;
+
+				HttpHead forwardHead = rewriteRequest(requestHead, uri, "HTTP/1.0");
+				forwardHead.set("Connection", "close");
+				if (plainGet) {
+					restrictCodings(forwardHead, requestHead);
+				}
+				addValidators(forwardHead, stale);
+				forward = ByteBuffer.wrap(forwardHead.toBytes());
+				requestTime = System.currentTimeMillis();
+
+				connectToServer(hostname, (port == -1) ? SERVER_PORT : port);
+			}
+
+			private boolean serveFromCache(CacheEntry entry) throws IOException {
+				byte[] hot = entry.hotBody();
+				File file = new File(entry.filename);
+
+				if (hot == null && !file.exists()) {
+					removeFromCache(URI, entry);
+					return false;
+				}
+				entry.touch();
+
+				if (entry.needsDecoding(requestHead)) {
+					/** Decode a gzipped body for a client that does not take gzip **/
+					head = ByteBuffer.wrap(entry.decodedHead(keepAlive).toBytes());
+					if (!method.equals("HEAD")) {
+						InputStream stored = (hot != null) ? new ByteArrayInputStream(hot) : new FileInputStream(file);
+						decoder = new GZIPInputStream(stored, BUFFER_SIZE);
+						response = ByteBuffer.allocate(BUFFER_SIZE);
+						response.flip();
+					}
+					writeToClient();
+					return true;
+				}
+
+				long[] range = requestedRange(requestHead, entry);
+				if (range == UNSATISFIABLE) {
+					head = ByteBuffer.wrap(rangeNotSatisfiable(entry.length, keepAlive));
+					writeToClient();
+					return true;
+				}
+
+				long start = (range == null) ? 0 : range[0];
+				long count = (range == null) ? entry.length : range[1] - range[0] + 1;
+				HttpHead responseHead = (range == null) ? entry.responseHead(keepAlive)
+						: rangeHead(entry, range, keepAlive);
+				head = ByteBuffer.wrap(responseHead.toBytes());
+
+				if (method.equals("HEAD")) {
+					// Headers only
+				} else if (hot != null) {
+					response = ByteBuffer.wrap(hot, (int) start, (int) count);
+				} else {
+					/** Ranges are always sent straight from the file **/
+					fromFile = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+					filePosition = start;
+					fileEnd = start + count;
+					zeroCopy = range != null || entry.length > MEMORY_OBJECT_SIZE;
+					if (!zeroCopy) {
+						hotCopy = new HotCopy();
+						served = entry;
+						response = takeBuffer();
+						response.flip();
+					}
+				}
+
+				writeToClient();
+				return true;
+			}
+
+			/**
+			 * Starts connecting to the server. Its address usually comes from
+			 * the DNS cache; otherwise it is looked up on the resolver and the
+			 * connect is started again on this loop once it is known.
+			 */
+			private void connectToServer(String hostname, int port) throws IOException {
+				origin = SocketChannel.open();
+				origin.configureBlocking(false);
+				originHost = hostname;
+				originPort = port;
+
+				if (origins.isResolved(hostname)) {
+					connect();
+				} else {
+					resolve();
+				}
+			}
+
+			private void connect() throws IOException {
+				InetSocketAddress address = origins.admit(originHost, originPort);
+				boolean connected;
+				try {
+					connected = origin.connect(address);
+				} catch (IOException e) {
+					origins.failed(originHost, originPort);
+					throw e;
+				}
+
+				if (connected) {
+					origins.connected(originHost, originPort);
+					originKey = origin.register(selector, SelectionKey.OP_WRITE, this);
+				} else {
+					originKey = origin.register(selector, SelectionKey.OP_CONNECT, this);
+				}
+			}
+
+			private void resolve() {
+				final String hostname = originHost;
+				final SocketChannel waiting = origin;
+				final Runnable resume = new Runnable() {
+					@Override
+					public void run() {
+						if (origin != waiting || closed) {
+							return;	// Failed or expired meanwhile
+						}
+
+						try {
+							connect();
+						} catch (IOException e) {
+							fail(e);
+						} catch (RuntimeException e) {
+							fail(e);
+						}
+					}
+				};
+
+				resolver.execute(new Runnable() {
+					@Override
+					public void run() {
+						origins.lookUp(hostname);
+						post(resume);
+					}
+				});
+			}
+
+			private void finishConnect() throws IOException {
+				boolean connected;
+				try {
+					connected = origin.finishConnect();
+				} catch (IOException e) {
+					origins.failed(originHost, originPort);
+					throw e;
+				}
+
+				if (connected) {
+					origins.connected(originHost, originPort);
+					originKey.interestOps(SelectionKey.OP_WRITE);
+				}
+			}
+
+			private void writeRequest() throws IOException {
+				if (forward.hasRemaining()) {
+					origin.write(forward);
+					if (forward.hasRemaining()) {
+						return;
+					}
+				}
+
+				/** Forward the request body, reading more from the client as needed **/
+				while (requestRemaining > 0) {
+					int available = (int) Math.min(requestRemaining, request.position());
+					if (available == 0) {
+						originKey.interestOps(0);
+						clientKey.interestOps(SelectionKey.OP_READ);
+						return;
+					}
+
+					ByteBuffer body = request.duplicate();
+					body.flip();
+					body.limit(available);
+
+					int written = origin.write(body);
+					consume(written);
+					requestRemaining -= written;
+					if (written < available) {
+						return;
+					}
+				}
+
+				response = takeBuffer();
+				originKey.interestOps(SelectionKey.OP_READ);
+			}
+
+			private void readResponse() throws IOException {
+				int length = origin.read(response);
+
+				if (length == -1) {
+					if (!headParsed || (bodyLength >= 0 && bodyReceived < bodyLength)) {
+						throw new EOFException("Server closed the connection early");
+					}
+					originDone = true;
+					response.flip();
+					writeToClient();
+					return;
+				}
+
+				if (!headParsed) {
+					int end = responseParser.parse(response, responseParsed, response.position());
+
+					while (responseParser.isComplete() && !headParsed) {
+						originHead = responseParser.head();
+						responseParser.reset();
+						response.flip();
+						response.position(end);
+
+						if (originHead.status() < 200 && originHead.status() != 101) {
+							/** Interim response, the final one follows **/
+							response.compact();
+							end = responseParser.parse(response, 0, response.position());
+						} else if (stale != null && originHead.status() == 304) {
+							revalidated();
+							return;
+						} else {
+							startResponse();
+						}
+					}
+
+					if (!headParsed) {
+						if (!response.hasRemaining()) {
+							throw new IOException("Response header too large");
+						}
+						responseParsed = end;
+						return;
+					}
+				} else {
+					response.flip();
+				}
+
+				/** Body bytes are [position, limit) of the response buffer **/
+				if (bodyLength >= 0 && bodyReceived + response.remaining() >= bodyLength) {
+					response.limit(response.position() + (int) (bodyLength - bodyReceived));
+					originDone = true;
+				}
+				bodyReceived += response.remaining();
+
+				if (toFile != null) {
+					hotCopy.write(response);
+					toFile.write(response);
+				}
+
+				writeToClient();
+			}
+
+			/**
+			 * Refreshes the stale copy after a 304 and serves it instead.
+			 */
+			private void revalidated() throws IOException {
+				CacheEntry refreshed = stale.revalidated(originHead, requestTime, System.currentTimeMillis());
+				replaceInCache(URI, stale, refreshed);
+
+				originKey.cancel();
+				closeQuietly(origin);
+				returnBuffer(response);
+				origin = null;
+				originKey = null;
+				response = null;
+
+				outcome = Outcome.REVALIDATED;
+				if (!serveFromCache(refreshed)) {
+					throw new FileNotFoundException(refreshed.filename);
+				}
+			}
+
+			/**
+			 * Rewrites the origin's response head for the client and opens
+			 * the cache file if the response will be cached.
+			 */
+			private void startResponse() throws IOException {
+				headParsed = true;
+				responseStarted = true;
+				bodyLength = responseBodyLength(method, originHead);
+
+				HttpHead clientHead = originHead.copy();
+				clientHead.setVersion("HTTP/1.1");
+				stripHopByHop(clientHead);
+
+				if (bodyLength < 0) {
+					/** Only the end of the stream marks the end of this response **/
+					keepAlive = false;
+				}
+				clientHead.set("Connection", keepAlive ? "keep-alive" : "close");
+				head = ByteBuffer.wrap(clientHead.toBytes());
+
+				boolean cacheable = plainGet && bodyLength != CHUNKED && isCacheable(requestHead, originHead);
+				if (plainGet && !cacheable) {
+					removeFromCache(URI);
+				}
+
+				if (cacheable) {
+					filename = cacheFilename(URI, varyKey(requestHead, originHead));
+					toFile = WriteBehind.open(new File(filename), bodyLength);
+					hotCopy = (toFile != null) ? new HotCopy() : null;
+				}
+
+				if (bodyLength == 0) {
+					originDone = true;
+				}
+			}
+
+			private void writeToClient() throws IOException {
+				if (head != null) {
+					if (firstByteAt == 0) {
+						status = statusOf(head.array(), head.position(), head.remaining());
+					}
+					sent(client.write(head));
+					if (head.hasRemaining()) {
+						waitForClient();
+						return;
+					}
+					head = null;
+				}
+
+				if (zeroCopy) {
+					/** Let the kernel send the file straight to the socket **/
+					long sent = fromFile.transferTo(filePosition, fileEnd - filePosition, client);
+					if (sent <= 0 && filePosition >= fromFile.size()) {
+						throw new EOFException("Cached file is shorter than expected");
+					}
+					sent(sent);
+					filePosition += sent;
+					if (filePosition < fileEnd) {
+						waitForClient();
+					} else {
+						finishExchange();
+					}
+					return;
+				}
+
+				while (response != null) {
+					sent(client.write(response));
+					if (response.hasRemaining()) {
+						waitForClient();
+						return;
+					}
+
+					if (decoder != null) {
+						if (decoderDone) {
+							break;
+						}
+						decoderDone = !nextChunk(decoder, response);
+						continue;
+					}
+
+					if (fromFile == null) {
+						break;
+					}
+
+					response.clear();
+					if (fromFile.read(response) == -1) {
+						hotCopy.promote(served);
+						break;
+					}
+					response.flip();
+					hotCopy.write(response);
+				}
+
+				if (origin != null && !originDone) {
+					/** Client has caught up, read more of the response **/
+					response.clear();
+					clientKey.interestOps(0);
+					originKey.interestOps(SelectionKey.OP_READ);
+					return;
+				}
+
+				if (origin != null && toFile != null) {
+					final String key = URI;
+					final HotCopy copy = hotCopy;
+					final CacheEntry entry = new CacheEntry(filename, cacheHead(originHead), bodyReceived,
+							varyKey(requestHead, originHead), requestTime, System.currentTimeMillis());
+					toFile.finish(new Runnable() {
+						@Override
+						public void run() {
+							storeResponse(key, entry, copy);
+						}
+					});
+					toFile = null;
+				}
+
+				finishExchange();
+			}
+
+			private void waitForClient() {
+				clientKey.interestOps(SelectionKey.OP_WRITE);
+				if (originKey != null && originKey.isValid()) {
+					originKey.interestOps(0);
+				}
+			}
+
+			/**
+			 * Releases everything used by the finished request and moves on to
+			 * the next one, which may already be waiting in the buffer.
+			 */
+			private void finishExchange() throws IOException {
+				record();
+				closeQuietly(fromFile);
+				closeQuietly(toFile);
+				closeQuietly(decoder);
+				if (originKey != null) {
+					originKey.cancel();
+				}
+				closeQuietly(origin);
+				if (response != null && response.isDirect()) {
+					returnBuffer(response);
+				}
+
+				head = null;
+				response = null;
+				fromFile = null;
+				filePosition = 0;
+				fileEnd = 0;
+				decoder = null;
+				decoderDone = false;
+				zeroCopy = false;
+				origin = null;
+				originKey = null;
+				forward = null;
+				requestHead = null;
+				stale = null;
+				headParsed = false;
+				responseParser.reset();
+				responseParsed = 0;
+				originHead = null;
+				bodyLength = 0;
+				bodyReceived = 0;
+				originDone = false;
+				toFile = null;
+				hotCopy = null;
+				busy = false;
+				responseStarted = false;
+
+				if (!keepAlive) {
+					close();
+					return;
+				}
+
+				processRequest();
+			}
+
+			private void sent(long count) {
+				if (count > 0 && firstByteAt == 0) {
+					firstByteAt = System.nanoTime();
+				}
+				bytesSent += count;
+			}
+
+			/**
+			 * Adds the request just answered, or abandoned, to the metrics.
+			 */
+			private void record() {
+				if (requestStart == 0) {
+					return;
+				}
+
+				long finishedAt = System.nanoTime();
+				if (status >= 500) {
+					outcome = Outcome.ERROR;
+				}
+				metrics.record(outcome, requestStart, firstByteAt, finishedAt, bytesSent);
+				accessLog.log(String.valueOf(client.socket().getRemoteSocketAddress()), requestHead, status, outcome,
+						requestStart, firstByteAt, finishedAt, bytesSent);
+
+				requestStart = 0;
+				firstByteAt = 0;
+				bytesSent = 0;
+				status = 0;
+			}
+
+			/**
+			 * Drops the first bytes of the client buffer once handled.
+			 */
+			private void consume(int length) {
+				request.flip();
+				request.position(length);
+				request.compact();
+			}
+
+			/**
+			 * How long the connection may go without progress: the server's
+			 * timeouts while looking it up, connecting to it or waiting on its
+			 * response, the client's otherwise.
+			 */
+			int timeout() {
+				if (origin == null) {
+					return CLIENT_TIMEOUT;
+				}
+				if (originKey == null) {
+					return CONNECT_TIMEOUT;	// Still looking up the server
+				}
+				if (!originKey.isValid()) {
+					return CLIENT_TIMEOUT;
+				}
+
+				int interest = originKey.interestOps();
+				if ((interest & SelectionKey.OP_CONNECT) != 0) {
+					return CONNECT_TIMEOUT;
+				}
+				return (interest != 0) ? SERVER_TIMEOUT : CLIENT_TIMEOUT;
+			}
+
+			/**
+			 * Closes an idle keep-alive connection quietly, and fails one in
+			 * the middle of a request.
+			 */
+			void expire() {
+				if (!busy) {
+					close();
+					return;
+				}
+				fail(new SocketTimeoutException("No progress for " + timeout() + " ms"));
+			}
+
+			void fail(Exception e) {
+				if (!responseStarted && origin != null) {
+					status = 502;
+					try {
+						sent(client.write(ByteBuffer.wrap(BAD_GATEWAY)));
+					} catch (IOException ignored) {
+						// Client is gone as well
+					}
+				} else if (!responseStarted && e instanceof IllegalArgumentException) {
+					metrics.badRequest();
+					outcome = Outcome.ERROR;
+					status = 400;
+					try {
+						sent(client.write(ByteBuffer.wrap(BAD_REQUEST)));
+					} catch (IOException ignored) {
+						// Client is gone as well
+					}
+				} else {
+					System.out.println("Error serving client: " + e);
+				}
+
+				record();
+				closeQuietly(toFile);
+				toFile = null;
+				close();
+			}
+
+			private void close() {
+				if (clientKey != null) {
+					clientKey.cancel();
+				}
+				if (originKey != null) {
+					originKey.cancel();
+				}
+
+				closeQuietly(client);
+				closeQuietly(origin);
+				closeQuietly(fromFile);
+				closeQuietly(toFile);
+				closeQuietly(decoder);
+
+				if (!closed) {
+					closed = true;
+					metrics.connectionClosed();
+				}
+				returnBuffer(request);
+				if (response != null && response.isDirect()) {
+					returnBuffer(response);
+				}
+				request = null;
+				response = null;
+			}
+		}
+	}
+
+	/**
+	 * A response being fetched from the server for a plain GET. Requests for
+	 * the same URI arriving meanwhile join it and stream its body as it
+	 * arrives rather than fetching it again. Body chunks are only copied
+	 * while requests have joined, and each is let go once all of them have
+	 * read it, so requests can join until the first chunk is let go or
+	 * arrives with nobody to read it. The chunks of all fills share one
+	 * budget; a fill whose requests fall so far behind that it runs out is
+	 * failed for them, as the rest of the body is no longer kept.
+	 */
+	private static class Fill {
+		private HttpHead head;
+		private long length = UNTIL_CLOSE;
+		private String varyKey;
+		private ArrayList<byte[]> chunks = new ArrayList<byte[]>();
+		private int first = 0;
+		private ArrayList<Reader> readers = new ArrayList<Reader>();
+		private boolean joinable = true;
+		private boolean finished = false;
+		private boolean failed = false;
+
+		/**
+		 * A joined request's place in the body.
+		 */
+		static class Reader {
+			private int next = 0;
+		}
+
+		/**
+		 * Joins the fill, or returns null if it can no longer be joined.
+		 */
+		synchronized Reader join() {
+			if (!joinable || failed) {
+				return null;
+			}
+			Reader reader = new Reader();
+			readers.add(reader);
+			return reader;
+		}
+
+		synchronized void leave(Reader reader) {
+			readers.remove(reader);
+			letGo();
+		}
+
+		synchronized void start(HttpHead head, long length, String varyKey) {
+			this.head = head;
+			this.length = length;
+			this.varyKey = varyKey;
+			notifyAll();
+		}
+
+		synchronized void append(byte[] buffer, int offset, int length) {
+			if (failed) {
+				return;
+			}
+			if (readers.isEmpty()) {
+				joinable = false;	// Nobody to keep it for, later requests fetch their own
+				return;
+			}
+
+			if (fillBytes.addAndGet(length) > FILL_BUFFER_SIZE) {
+				fillBytes.addAndGet(-length);
+				System.out.println("Shared requests are behind, failing them");
+				fail();
+				return;
+			}
+			chunks.add(Arrays.copyOfRange(buffer, offset, offset + length));
+			notifyAll();
+		}
+
+		synchronized void finish() {
+			finished = true;
+			joinable = false;
+			notifyAll();
+		}
+
+		/**
+		 * Fails the fill unless it has finished. Called once the leading
+		 * request is done with it either way.
+		 */
+		synchronized void abandon() {
+			if (!finished) {
+				fail();
+			}
+		}
+
+		/**
+		 * Whether any joined request is still reading the body. Once none
+		 * is, no more can join.
+		 */
+		synchronized boolean isFollowed() {
+			if (failed || readers.isEmpty()) {
+				joinable = false;
+				return false;
+			}
+			return true;
+		}
+
+		synchronized HttpHead awaitHead() throws IOException {
+			while (head == null && !failed) {
+				awaitChange();
+			}
+			if (head == null) {
+				throw new IOException("Shared request failed");
+			}
+			return head;
+		}
+
+		synchronized long length() {
+			return length;
+		}
+
+		synchronized String varyKey() {
+			return varyKey;
+		}
+
+		/**
+		 * Returns the reader's next body chunk once it has arrived, or null
+		 * after the last one.
+		 */
+		synchronized byte[] awaitChunk(Reader reader) throws IOException {
+			while (!failed && !finished && reader.next >= first + chunks.size()) {
+				awaitChange();
+			}
+			if (failed) {
+				throw new IOException("Shared request failed");
+			}
+			if (reader.next >= first + chunks.size()) {
+				return null;
+			}
+
+			byte[] chunk = chunks.get(reader.next - first);
+			reader.next++;
+			letGo();
+			return chunk;
+		}
+
+		/**
+		 * Lets go of the chunks every joined request has read.
+		 */
+		private void letGo() {
+			int read = first + chunks.size();
+			for (Reader reader : readers) {
+				read = Math.min(read, reader.next);
+			}
+			if (read > first) {
+				discard(read - first);
+				first = read;
+				joinable = false;
+			}
+		}
+
+		private void fail() {
+			failed = true;
+			joinable = false;
+			first += chunks.size();
+			discard(chunks.size());
+			notifyAll();
+		}
+
+		private void discard(int count) {
+			List<byte[]> done = chunks.subList(0, count);
+			long bytes = 0;
+			for (byte[] chunk : done) {
+				bytes += chunk.length;
+			}
+			done.clear();
+			fillBytes.addAndGet(-bytes);
+		}
+
+		private void awaitChange() throws IOException {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for shared request");
+			}
+		}
+	}
+
+	/**
+	 * Whether a request is a GET whose response is the same for everyone
+	 * asking for its URI, so it can be shared and cached.
+	 */
+	private static boolean isPlainGet(HttpHead request) {
+		return request.method().equals("GET") && requestBodyLength(request) == 0
+				&& request.get("Range") == null && request.get("If-None-Match") == null
+				&& request.get("If-Modified-Since") == null && request.get("If-Match") == null
+				&& request.get("If-Unmodified-Since") == null && request.get("If-Range") == null;
+	}
+
+	/**
+	 * Whether a request is an unconditional GET for a byte range, which the
+	 * parts of a response kept so far may answer.
+	 */
+	private static boolean isRangeGet(HttpHead request) {
+		return request.method().equals("GET") && requestBodyLength(request) == 0 && request.get("Range") != null
+				&& request.get("If-None-Match") == null && request.get("If-Modified-Since") == null
+				&& request.get("If-Match") == null && request.get("If-Unmodified-Since") == null;
+	}
+
+	/**
+	 * Whether a body of the given length is sent chunked to the client. A
+	 * body of unknown length for an HTTP/1.0 client is instead ended by
+	 * closing the connection.
+	 */
+	private static boolean chunkBody(HttpHead request, long length) {
+		return length < 0 && request.version().equals("HTTP/1.1");
+	}
+
+	/**
+	 * Start line and header fields of an HTTP request or response. Header
+	 * names keep their case but are matched case-insensitively.
+	 */
+	static class HttpHead {
+		private String[] startLine;
+		private final ArrayList<String> names = new ArrayList<String>();
+		private final ArrayList<String> values = new ArrayList<String>();
+
+		private HttpHead(String[] startLine) {
+			this.startLine = startLine;
+		}
+
+		/**
+		 * Reads a head, returning null if the stream ends before it starts.
+		 * Blocks are parsed straight out of the stream's buffer, and the
+		 * stream is left just past the head so a pipelined message that
+		 * follows stays in it.
+		 */
+		static HttpHead read(InputStream in) throws IOException {
+			HeadParser parser = new HeadParser();
+			byte[] block = new byte[HEAD_BLOCK_SIZE];
+
+			while (true) {
+				in.mark(block.length);
+				int read = in.read(block);
+				if (read == -1) {
+					if (parser.isEmpty()) {
+						return null;
+					}
+					throw new EOFException("Connection closed inside a header");
+				}
+
+				int used = parser.parse(block, 0, read);
+				if (parser.isComplete()) {
+					in.reset();
+					in.skip(used);
+					return parser.head();
+				}
+			}
+		}
+
+		static HttpHead parse(String text) {
+			byte[] bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+			HeadParser parser = new HeadParser();
+			parser.parse(bytes, 0, bytes.length);
+			if (!parser.isComplete()) {
+				throw new IllegalArgumentException("Incomplete header");
+			}
+			return parser.head();
+		}
+
+		HttpHead copy() {
+			HttpHead copy = new HttpHead(startLine.clone());
+			copy.names.addAll(names);
+			copy.values.addAll(values);
+			return copy;
+		}
+
+		String method() {
+			return startLine[0];
+		}
+
+		String uri() {
+			return startLine[1];
+		}
+
+		void setUri(String uri) {
+			startLine[1] = uri;
+		}
+
+		/**
+		 * Protocol version, which starts a response and ends a request.
+		 */
+		String version() {
+			if (startLine[0].startsWith("HTTP/")) {
+				return startLine[0];
+			}
+			return (startLine.length > 2) ? startLine[2] : "HTTP/1.0";
+		}
+
+		void setVersion(String version) {
+			if (startLine[0].startsWith("HTTP/")) {
+				startLine[0] = version;
+			} else if (startLine.length > 2) {
+				startLine[2] = version;
+			}
+		}
+
+		/**
+		 * Replaces the status code and reason phrase of a response.
+		 */
+		void setStatus(int status, String reason) {
+			startLine = new String[] { startLine[0], Integer.toString(status), reason };
+		}
+
+		int status() {
+			try {
+				return Integer.parseInt(startLine[1]);
+			} catch (NumberFormatException e) {
+				return -1;
+			}
+		}
+
+		String get(String name) {
+			for (int i = 0; i < names.size(); i++) {
+				if (names.get(i).equalsIgnoreCase(name)) {
+					return values.get(i);
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * All values of a header that may appear more than once, joined into
+		 * one comma separated list, or null if it is absent.
+		 */
+		String getAll(String name) {
+			StringBuilder all = null;
+			for (int i = 0; i < names.size(); i++) {
+				if (names.get(i).equalsIgnoreCase(name)) {
+					all = (all == null) ? new StringBuilder() : all.append(", ");
+					all.append(values.get(i));
+				}
+			}
+			return (all == null) ? null : all.toString();
+		}
+
+		/**
+		 * Checks whether a comma separated header lists the given token.
+		 */
+		boolean hasToken(String name, String token) {
+			for (int i = 0; i < names.size(); i++) {
+				if (names.get(i).equalsIgnoreCase(name)) {
+					for (String value : values.get(i).split(",")) {
+						if (value.trim().equalsIgnoreCase(token)) {
+							return true;
+						}
+					}
+				}
+			}
+			return false;
+		}
+
+		void add(String name, String value) {
+			names.add(name);
+			values.add(value);
+		}
+
+		void set(String name, String value) {
+			remove(name);
+			add(name, value);
+		}
+
+		/**
+		 * Replaces every header named in the other head with its values there.
+		 */
+		void setAll(HttpHead other) {
+			for (String name : other.names) {
+				remove(name);
+			}
+			names.addAll(other.names);
+			values.addAll(other.values);
+		}
+
+		void remove(String name) {
+			for (int i = names.size() - 1; i >= 0; i--) {
+				if (names.get(i).equalsIgnoreCase(name)) {
+					names.remove(i);
+					values.remove(i);
+				}
+			}
+		}
+
+		byte[] toBytes() {
+			return toString().getBytes(StandardCharsets.ISO_8859_1);
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder text = new StringBuilder();
+			for (int i = 0; i < startLine.length; i++) {
+				if (i > 0) {
+					text.append(' ');
+				}
+				text.append(startLine[i]);
+			}
+			text.append("\r\n");
+
+			for (int i = 0; i < names.size(); i++) {
+				text.append(names.get(i)).append(": ").append(values.get(i)).append("\r\n");
+			}
+			return text.append("\r\n").toString();
+		}
+	}
+
+	/**
+	 * Incremental parser for the head of an HTTP message. Bytes are fed in
+	 * as they arrive, split anywhere, and only the line being parsed is
+	 * kept; each start line token, header name and value becomes a String
+	 * once, straight from the bytes. Blank lines before a start line are
+	 * skipped, and folded header lines join the value before them.
+	 */
+	static class HeadParser {
+		private byte[] line = new byte[256];
+		private int lineLength = 0;
+		private int size = 0;
+		private HttpHead head;
+		private boolean complete = false;
+
+		/**
+		 * Parses bytes up to the end of the head, returning how many of them
+		 * belong to it.
+		 */
+		int parse(byte[] buffer, int offset, int length) {
+			for (int i = 0; i < length && !complete; i++) {
+				if (accept(buffer[offset + i])) {
+					return i + 1;
+				}
+			}
+			return length;
+		}
+
+		/**
+		 * Parses [from, to) of a buffer without moving it, returning the
+		 * position just past the last byte belonging to the head.
+		 */
+		int parse(ByteBuffer buffer, int from, int to) {
+			for (int i = from; i < to && !complete; i++) {
+				if (accept(buffer.get(i))) {
+					return i + 1;
+				}
+			}
+			return to;
+		}
+
+		boolean isComplete() {
+			return complete;
+		}
+
+		boolean isEmpty() {
+			return head == null && lineLength == 0;
+		}
+
+		HttpHead head() {
+			return complete ? head : null;
+		}
+
+		void reset() {
+			lineLength = 0;
+			size = 0;
+			head = null;
+			complete = false;
+		}
+
+		/**
+		 * Takes one byte, returning true once it completes the head.
+		 */
+		private boolean accept(byte b) {
+			if (++size > BUFFER_SIZE) {
+				throw new IllegalArgumentException("Header too large");
+			}
+
+			if (b != '\n') {
+				if (lineLength == line.length) {
+					line = Arrays.copyOf(line, line.length * 2);
+				}
+				line[lineLength++] = b;
+				return false;
+			}
+
+			int length = (lineLength > 0 && line[lineLength - 1] == '\r') ? lineLength - 1 : lineLength;
+			lineLength = 0;
+
+			if (head == null) {
+				if (length == 0) {
+					/** Tolerate blank lines before a request **/
+					size = 0;
+				} else {
+					head = new HttpHead(startLine(length));
+				}
+			} else if (length == 0) {
+				complete = true;
+			} else if ((line[0] == ' ' || line[0] == '\t') && !head.values.isEmpty()) {
+				int last = head.values.size() - 1;
+				head.values.set(last, head.values.get(last) + " " + text(0, length));
+			} else {
+				int colon = indexOf(':', 0, length);
+				if (colon > 0) {
+					head.add(text(0, colon), text(colon + 1, length));
+				}
+			}
+			return complete;
+		}
+
+		/**
+		 * Splits the start line into at most three tokens, the last of which
+		 * keeps any further spaces (a reason phrase).
+		 */
+		private String[] startLine(int length) {
+			int first = indexOf(' ', 0, length);
+			if (first <= 0) {
+				throw new IllegalArgumentException("Malformed start line: " + text(0, length));
+			}
+
+			int second = indexOf(' ', first + 1, length);
+			if (second == -1) {
+				return new String[] { text(0, first), text(first + 1, length) };
+			}
+			return new String[] { text(0, first), text(first + 1, second), text(second + 1, length) };
+		}
+
+		private int indexOf(char c, int from, int to) {
+			for (int i = from; i < to; i++) {
+				if (line[i] == c) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Decodes [from, to) of the line as ISO-8859-1, trimming whitespace.
+		 */
+		private String text(int from, int to) {
+			while (from < to && (line[from] == ' ' || line[from] == '\t')) {
+				from++;
+			}
+			while (to > from && (line[to - 1] == ' ' || line[to - 1] == '\t')) {
+				to--;
+			}
+			return new String(line, from, to - from, StandardCharsets.ISO_8859_1);
+		}
+	}
+
+	/**
+	 * Body of a message read off a connection, ending where the message's
+	 * framing says it ends. Chunked bodies are decoded.
+	 */
+	private static class BodyInputStream extends InputStream {
+		private final InputStream in;
+		private final boolean chunked;
+		private long remaining;
+		private boolean finished = false;
+
+		/**
+		 * @param length body length, or CHUNKED, or UNTIL_CLOSE
+		 */
+		BodyInputStream(InputStream in, long length) {
+			this.in = in;
+			this.chunked = (length == CHUNKED);
+			this.remaining = chunked ? 0 : length;
+			this.finished = (length == 0);
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] single = new byte[1];
+			return (read(single, 0, 1) == -1) ? -1 : (single[0] & 0xFF);
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if (finished) {
+				return -1;
+			}
+
+			if (chunked && remaining == 0) {
+				remaining = readChunkSize();
+				if (remaining == 0) {
+					/** Last chunk, skip any trailer fields **/
+					while (readLine().length() > 0) {
+						// Trailers are not forwarded
+					}
+					finished = true;
+					return -1;
+				}
+			}
+
+			int wanted = (remaining == UNTIL_CLOSE) ? length : (int) Math.min(length, remaining);
+			int read = in.read(buffer, offset, wanted);
+
+			if (read == -1) {
+				if (remaining == UNTIL_CLOSE) {
+					finished = true;
+					return -1;
+				}
+				throw new EOFException("Connection closed inside a body");
+			}
+
+			if (remaining != UNTIL_CLOSE) {
+				remaining -= read;
+				if (remaining == 0 && chunked) {
+					readLine();	// CRLF after the chunk data
+				} else if (remaining == 0) {
+					finished = true;
+				}
+			}
+			return read;
+		}
+
+		private long readChunkSize() throws IOException {
+			String line = readLine();
+			int extension = line.indexOf(';');
+			if (extension != -1) {
+				line = line.substring(0, extension);
+			}
+
+			try {
+				return Long.parseLong(line.trim(), 16);
+			} catch (NumberFormatException e) {
+				throw new IOException("Malformed chunk size: " + line);
+			}
+		}
+
+		private String readLine() throws IOException {
+			StringBuilder line = new StringBuilder();
+			int b = in.read();
+			while (b != '\n') {
+				if (b == -1) {
+					throw new EOFException("Connection closed inside a chunk");
+				}
+				if (b != '\r') {
+					line.append((char) b);
+				}
+				b = in.read();
+			}
+			return line.toString();
+		}
+	}
+
+	/**
+	 * Writes each block it is given as one chunk of a chunked body. The
+	 * underlying stream stays open after finish().
+	 */
+	private static class ChunkedOutputStream extends FilterOutputStream {
+		private static final byte[] CRLF = { '\r', '\n' };
+
+		ChunkedOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) throws IOException {
+			if (length == 0) {
+				return;
+			}
+			out.write(Integer.toHexString(length).getBytes(StandardCharsets.ISO_8859_1));
+			out.write(CRLF);
+			out.write(buffer, offset, length);
+			out.write(CRLF);
+		}
+
+		void finish() throws IOException {
+			out.write(new byte[] { '0', '\r', '\n', '\r', '\n' });
+		}
+	}
+
+	/**
+	 * A cached response: its head, and its body in a file, along with when
+	 * it stops being fresh and the validators to revalidate it with.
+	 */
+	static class CacheEntry {
+		final String filename;
+		final HttpHead head;
+		final long length;
+		final long storedAt;
+		final long initialAge;
+		final long freshUntil;
+		final String etag;
+		final String lastModified;
+		final String varyKey;
+		volatile long lastAccess;
+
+		CacheEntry(String filename, HttpHead head, long length, String varyKey, long requestTime, long responseTime) {
+			this(filename, head, length, varyKey, responseTime, initialAge(head, requestTime, responseTime),
+					responseTime + freshnessLifetime(head) - initialAge(head, requestTime, responseTime));
+		}
+
+		/**
+		 * Recreates an entry as it was recorded in the cache index.
+		 */
+		CacheEntry(String filename, HttpHead head, long length, String varyKey, long storedAt, long initialAge,
+				long freshUntil) {
+			this.filename = filename;
+			this.head = head;
+			this.length = length;
+			this.varyKey = varyKey;
+			this.storedAt = storedAt;
+			this.initialAge = initialAge;
+			this.freshUntil = freshUntil;
+			this.etag = head.get("ETag");
+			this.lastModified = head.get("Last-Modified");
+			this.lastAccess = storedAt;
+		}
+
+		/**
+		 * The body, if the memory tier holds it. Bodies there are kept under
+		 * the entry's own file, never shared with another entry, so whatever
+		 * is found is this entry's body in this entry's coding.
+		 */
+		byte[] hotBody() {
+			return memoryCache.get(filename);
+		}
+
+		/**
+		 * Marks the entry as just used, for the disk evictor.
+		 */
+		void touch() {
+			lastAccess = System.currentTimeMillis();
+		}
+
+		boolean isFresh(long now) {
+			return now < freshUntil;
+		}
+
+		boolean hasValidator() {
+			return etag != null || lastModified != null;
+		}
+
+		/**
+		 * The same body with the head updated from a 304 response.
+		 */
+		CacheEntry revalidated(HttpHead notModified, long requestTime, long responseTime) {
+			HttpHead updated = head.copy();
+			updated.setAll(cacheHead(notModified));
+			return new CacheEntry(filename, updated, length, varyKey, requestTime, responseTime);
+		}
+
+		/**
+		 * Content coding the body is stored in, or null if none.
+		 */
+		String encoding() {
+			String encoding = head.get("Content-Encoding");
+			return (encoding == null || encoding.trim().equalsIgnoreCase("identity")) ? null : encoding.trim();
+		}
+
+		/**
+		 * Whether this entry can answer the request: it was stored for the
+		 * same values of the headers it varies on, and its coding is one the
+		 * client takes or one that can be decoded for it. Decoded bodies are
+		 * chunked, so that is only done for HTTP/1.1 clients.
+		 */
+		boolean canServe(HttpHead request) {
+			if (!varyKey.equals(varyKey(request, head))) {
+				return false;
+			}
+
+			String encoding = encoding();
+			if (encoding == null || acceptsCoding(request, encoding)) {
+				return true;
+			}
+			return isGzip(encoding) && request.version().equals("HTTP/1.1");
+		}
+
+		/**
+		 * Whether the body has to be decoded for the client.
+		 */
+		boolean needsDecoding(HttpHead request) {
+			String encoding = encoding();
+			return encoding != null && !acceptsCoding(request, encoding);
+		}
+
+		/**
+		 * Head to send when serving this entry on a client connection.
+		 */
+		HttpHead responseHead(boolean keepAlive) {
+			HttpHead response = baseHead(keepAlive);
+			response.set("Content-Length", Long.toString(length));
+			if (encoding() == null) {
+				response.set("Accept-Ranges", "bytes");
+			}
+			return response;
+		}
+
+		/**
+		 * Head to send when decoding the body for the client, which it
+		 * receives chunked as another representation of the same response.
+		 */
+		HttpHead decodedHead(boolean keepAlive) {
+			HttpHead response = baseHead(keepAlive);
+			response.remove("Content-Encoding");
+			response.set("Transfer-Encoding", "chunked");
+			if (etag != null && !etag.startsWith("W/")) {
+				response.set("ETag", "W/" + etag);
+			}
+			return response;
+		}
+
+		private HttpHead baseHead(boolean keepAlive) {
+			long age = initialAge + (System.currentTimeMillis() - storedAt);
+
+			HttpHead response = head.copy();
+			response.set("Age", Long.toString(Math.max(age, 0) / 1000));
+			response.set("Connection", keepAlive ? "keep-alive" : "close");
+			if (encoding() != null && !response.hasToken("Vary", "Accept-Encoding")) {
+				response.add("Vary", "Accept-Encoding");
+			}
+			return response;
+		}
+	}
+
+	/**
+	 * Parts of a response fetched by Range requests, kept at their offsets
+	 * in a sparse file until together they make up the whole body, when the
+	 * file becomes an ordinary cache entry. The parts kept are tracked as
+	 * disjoint runs of bytes, merged as they grow; a part is only recorded
+	 * once written, so reads never see bytes that are not there yet.
+	 */
+	static class PartialEntry {
+		private final String URI;
+		private final File file;
+		private final TreeMap<Long, Long> runs = new TreeMap<Long, Long>();
+		private volatile CacheEntry entry;
+		private FileChannel channel;
+		private boolean discarded = false;
+
+		private PartialEntry(String URI, File file, CacheEntry entry) throws IOException {
+			this.URI = URI;
+			this.file = file;
+			this.entry = entry;
+			Files.createDirectories(file.getAbsoluteFile().getParentFile().toPath());
+			this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+		}
+
+		/**
+		 * The partial entry a 206 response adds to, or null if it should not
+		 * be kept. Parts are only put together when the server identifies the
+		 * whole response by a validator, and a response with another
+		 * validator or length starts over.
+		 */
+		static PartialEntry forResponse(String URI, String filename, HttpHead request, HttpHead response,
+				long requestTime, long responseTime) throws IOException {
+			long[] part = contentRange(response);
+			if (response.status() != 206 || part == null || !request.method().equals("GET")
+					|| response.get("Content-Encoding") != null) {
+				return null;
+			}
+
+			HttpHead whole = cacheHead(response);
+			whole.setStatus(200, "OK");
+			whole.remove("Content-Range");
+			String etag = whole.get("ETag");
+			if ((etag == null || etag.startsWith("W/")) && whole.get("Last-Modified") == null) {
+				return null;
+			}
+			if (!isCacheable(request, whole) || part[2] > DISK_CACHE_SIZE / MAX_PARTIALS) {
+				return null;
+			}
+
+			CacheEntry entry = new CacheEntry(filename, whole, part[2], varyKey(request, whole), requestTime,
+					responseTime);
+			synchronized (partials) {
+				PartialEntry partial = partials.get(URI);
+				if (partial != null && partial.matches(response)) {
+					partial.entry = entry;
+					return partial;
+				}
+				if (partial != null) {
+					partial.discard();
+				} else if (partials.size() >= MAX_PARTIALS) {
+					return null;
+				}
+
+				partial = new PartialEntry(URI, new File(filename + ".part"), entry);
+				partials.put(URI, partial);
+				return partial;
+			}
+		}
+
+		CacheEntry entry() {
+			return entry;
+		}
+
+		File file() {
+			return file;
+		}
+
+		/**
+		 * Validator identifying the response the parts belong to.
+		 */
+		String validator() {
+			CacheEntry current = entry;
+			return (current.etag != null && !current.etag.startsWith("W/")) ? current.etag : current.lastModified;
+		}
+
+		/**
+		 * Whether a 206 response is part of the same response as these parts.
+		 */
+		boolean matches(HttpHead response) {
+			long[] part = contentRange(response);
+			CacheEntry current = entry;
+			if (part == null || part[2] != current.length) {
+				return false;
+			}
+
+			String validator = validator();
+			return validator != null && (validator.equals(response.get("ETag"))
+					|| validator.equals(response.get("Last-Modified")));
+		}
+
+		/**
+		 * End of the bytes kept from the given position on, or the position
+		 * itself if it is not kept.
+		 */
+		synchronized long keptFrom(long position) {
+			Map.Entry<Long, Long> run = runs.floorEntry(position);
+			return (run != null && run.getValue() > position) ? run.getValue() : position;
+		}
+
+		/**
+		 * Writes part of the body at its offset. A part that cannot be written
+		 * discards the whole partial entry.
+		 */
+		synchronized void write(long position, byte[] buffer, int offset, int length) {
+			if (discarded) {
+				return;
+			}
+
+			try {
+				ByteBuffer part = ByteBuffer.wrap(buffer, offset, length);
+				long at = position;
+				while (part.hasRemaining()) {
+					at += channel.write(part, at);
+				}
+			} catch (IOException e) {
+				System.out.println("Error writing partial cache file: " + e);
+				discard();
+				return;
+			}
+
+			addRun(position, position + length);
+		}
+
+		/**
+		 * Turns the parts into a cache entry once they cover the whole body.
+		 */
+		void commitIfComplete() {
+			CacheEntry complete;
+			synchronized (this) {
+				Map.Entry<Long, Long> first = runs.firstEntry();
+				if (discarded || first == null || first.getKey() != 0 || first.getValue() < entry.length) {
+					return;
+				}
+
+				discarded = true;
+				complete = entry;
+				try {
+					channel.close();
+					Files.move(file.toPath(), new File(complete.filename).toPath(),
+							StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				} catch (IOException e) {
+					System.out.println("Error storing cache file: " + e);
+					file.delete();
+					complete = null;
+				}
+			}
+
+			partials.remove(URI, this);
+			if (complete != null) {
+				storeInCache(URI, complete);
+			}
+		}
+
+		synchronized void discard() {
+			discarded = true;
+			closeQuietly(channel);
+			file.delete();
+			partials.remove(URI, this);
+		}
+
+		private void addRun(long start, long end) {
+			Map.Entry<Long, Long> before = runs.floorEntry(start);
+			if (before != null && before.getValue() >= start) {
+				start = before.getKey();
+				end = Math.max(end, before.getValue());
+				runs.remove(before.getKey());
+			}
+
+			Map.Entry<Long, Long> after = runs.ceilingEntry(start);
+			while (after != null && after.getKey() <= end) {
+				end = Math.max(end, after.getValue());
+				runs.remove(after.getKey());
+				after = runs.ceilingEntry(start);
+			}
+
+			runs.put(start, end);
+		}
+	}
+
+	/**
+	 * The request's values of the headers a response varies on, which a
+	 * later request must repeat to be given the same response. Accept-Encoding
+	 * is left out, as the cache picks codings itself (see canServe).
+	 */
+	private static String varyKey(HttpHead request, HttpHead response) {
+		String vary = response.getAll("Vary");
+		if (vary == null) {
+			return "";
+		}
+
+		StringBuilder key = new StringBuilder();
+		for (String name : vary.split(",")) {
+			name = name.trim().toLowerCase();
+			if (name.isEmpty() || name.equals("accept-encoding")) {
+				continue;
+			}
+
+			String value = request.getAll(name);
+			key.append(name).append('=').append((value == null) ? "" : value.trim().replaceAll("\\s*,\\s*", ","))
+					.append('\n');
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Whether the client's Accept-Encoding takes the given content coding.
+	 */
+	private static boolean acceptsCoding(HttpHead request, String coding) {
+		String accept = request.getAll("Accept-Encoding");
+		if (accept == null) {
+			return false;
+		}
+
+		double named = -1;
+		double any = -1;
+		for (String item : accept.split(",")) {
+			String[] parts = item.split(";");
+			String name = parts[0].trim();
+			double quality = 1;
+
+			for (int i = 1; i < parts.length; i++) {
+				String parameter = parts[i].trim();
+				if (parameter.startsWith("q=")) {
+					try {
+						quality = Double.parseDouble(parameter.substring(2));
+					} catch (NumberFormatException e) {
+						quality = 0;
+					}
+				}
+			}
+
+			if (name.equalsIgnoreCase(coding) || (isGzip(name) && isGzip(coding))) {
+				named = quality;
+			} else if (name.equals("*")) {
+				any = quality;
+			}
+		}
+		return (named >= 0) ? named > 0 : any > 0;
+	}
+
+	private static boolean isGzip(String coding) {
+		return coding.equalsIgnoreCase("gzip") || coding.equalsIgnoreCase("x-gzip");
+	}
+
+	/**
+	 * Asks the server for a response in a coding the cache can serve to any
+	 * client: gzip if this client takes it, which is decoded for clients
+	 * that do not, and otherwise no coding. Other codings, such as br,
+	 * could only be served to clients that take them.
+	 */
+	private static void restrictCodings(HttpHead forward, HttpHead request) {
+		if (acceptsCoding(request, "gzip")) {
+			forward.set("Accept-Encoding", "gzip");
+		} else {
+			forward.remove("Accept-Encoding");
+		}
+	}
+
+	/**
+	 * Stores a response once its file is written. Text the server sent
+	 * uncompressed is gzipped first; this runs in the background, off any
+	 * client's path. The entry's body is in place, in its own file and in
+	 * the memory tier, before the entry is published in a single step.
+	 */
+	private static void storeResponse(String URI, CacheEntry entry, HotCopy hotCopy) {
+		CacheEntry compressed = isCompressible(entry) ? compress(entry) : null;
+		if (compressed == null) {
+			hotCopy.promote(entry);
+			storeInCache(URI, entry);
+			return;
+		}
+
+		/** The memory tier fills with the compressed body on the next hit **/
+		storeInCache(URI, compressed);
+	}
+
+	private static boolean isCompressible(CacheEntry entry) {
+		String type = entry.head.get("Content-Type");
+		if (entry.encoding() != null || type == null || entry.length < MIN_COMPRESS_SIZE) {
+			return false;
+		}
+
+		type = type.toLowerCase();
+		return type.startsWith("text/") || type.contains("json") || type.contains("javascript")
+				|| type.contains("xml") || type.contains("svg");
+	}
+
+	/**
+	 * Gzips an entry's file into a file of its own, returning the compressed
+	 * entry, or null if that fails or saves too little to be worth decoding
+	 * later. The entry is not yet published, so its file is only read here.
+	 */
+	private static CacheEntry compress(CacheEntry entry) {
+		File file = new File(entry.filename);
+		File compressedFile = new File(entry.filename + ".gz");
+		File tempFile = null;
+
+		try {
+			tempFile = createTempFile(file);
+			InputStream in = new FileInputStream(file);
+			OutputStream out = new GZIPOutputStream(new FileOutputStream(tempFile), BUFFER_SIZE);
+
+			try {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int read = in.read(buffer);
+				while (read != -1) {
+					out.write(buffer, 0, read);
+					read = in.read(buffer);
+				}
+			} finally {
+				in.close();
+				out.close();
+			}
+
+			long length = tempFile.length();
+			if (length > entry.length / 10 * 9) {
+				tempFile.delete();
+				return null;
+			}
+			Files.move(tempFile.toPath(), compressedFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			file.delete();
+
+			/** The compressed body is another representation, so its ETag is weak **/
+			HttpHead head = entry.head.copy();
+			head.set("Content-Encoding", "gzip");
+			if (!head.hasToken("Vary", "Accept-Encoding")) {
+				head.add("Vary", "Accept-Encoding");
+			}
+			if (entry.etag != null && !entry.etag.startsWith("W/")) {
+				head.set("ETag", "W/" + entry.etag);
+			}
+			return new CacheEntry(compressedFile.getPath(), head, length, entry.varyKey, entry.storedAt,
+					entry.initialAge, entry.freshUntil);
+		} catch (IOException e) {
+			System.out.println("Error compressing cache file: " + e);
+			if (tempFile != null) {
+				tempFile.delete();
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Fills a heap buffer with the next chunk of a chunked body read from
+	 * the stream, ready to be written. Returns false once it holds the last
+	 * chunk.
+	 */
+	private static boolean nextChunk(InputStream in, ByteBuffer buffer) throws IOException {
+		byte[] array = buffer.array();
+		int read = in.read(array, CHUNK_HEADER_SIZE, array.length - CHUNK_HEADER_SIZE - 2);
+
+		if (read == -1) {
+			buffer.clear();
+			buffer.put(new byte[] { '0', '\r', '\n', '\r', '\n' });
+			buffer.flip();
+			return false;
+		}
+
+		byte[] size = (Integer.toHexString(read) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+		int start = CHUNK_HEADER_SIZE - size.length;
+		System.arraycopy(size, 0, array, start, size.length);
+		array[CHUNK_HEADER_SIZE + read] = '\r';
+		array[CHUNK_HEADER_SIZE + read + 1] = '\n';
+
+		buffer.limit(CHUNK_HEADER_SIZE + read + 2);
+		buffer.position(start);
+		return true;
+	}
+
+	/**
+	 * The single byte range a GET asks for within a cached response, as
+	 * {first, last}, or UNSATISFIABLE. Returns null when the whole response
+	 * should be sent instead: no Range, an If-Range that does not match, or
+	 * a Range this cache does not split (several ranges, other units, or a
+	 * body stored with a content coding).
+	 */
+	private static long[] requestedRange(HttpHead request, CacheEntry entry) {
+		String range = request.get("Range");
+		if (range == null || !request.method().equals("GET") || entry.encoding() != null
+				|| !ifRangeMatches(request, entry)) {
+			return null;
+		}
+
+		range = range.trim();
+		if (!range.regionMatches(true, 0, "bytes=", 0, 6) || range.indexOf(',') != -1) {
+			return null;
+		}
+
+		String spec = range.substring(6).trim();
+		int dash = spec.indexOf('-');
+		if (dash == -1) {
+			return null;
+		}
+
+		long length = entry.length;
+		long first;
+		long last;
+
+		try {
+			if (dash == 0) {
+				/** Suffix range, the last so many bytes **/
+				long suffix = Long.parseLong(spec.substring(1).trim());
+				if (suffix <= 0) {
+					return UNSATISFIABLE;
+				}
+				first = Math.max(0, length - suffix);
+				last = length - 1;
+			} else {
+				first = Long.parseLong(spec.substring(0, dash).trim());
+				String end = spec.substring(dash + 1).trim();
+				long asked = end.isEmpty() ? Long.MAX_VALUE : Long.parseLong(end);
+				if (asked < first) {
+					return null;
+				}
+				last = Math.min(asked, length - 1);
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+
+		if (first >= length) {
+			return UNSATISFIABLE;
+		}
+		return new long[] { first, last };
+	}
+
+	/**
+	 * An If-Range holds if it names the cached response by its strong ETag
+	 * or exact Last-Modified date.
+	 */
+	private static boolean ifRangeMatches(HttpHead request, CacheEntry entry) {
+		String ifRange = request.get("If-Range");
+		if (ifRange == null) {
+			return true;
+		}
+		if (ifRange.startsWith("W/")) {
+			return false;
+		}
+		if (ifRange.startsWith("\"")) {
+			return ifRange.equals(entry.etag);
+		}
+		return ifRange.equals(entry.lastModified);
+	}
+
+	/**
+	 * Parses the Content-Range of a 206 response into {first, last, length},
+	 * or returns null if it is missing or the length is unknown.
+	 */
+	private static long[] contentRange(HttpHead response) {
+		String range = response.get("Content-Range");
+		if (range == null || !range.regionMatches(true, 0, "bytes ", 0, 6)) {
+			return null;
+		}
+
+		try {
+			String spec = range.substring(6).trim();
+			int dash = spec.indexOf('-');
+			int slash = spec.indexOf('/');
+			if (dash <= 0 || slash < dash) {
+				return null;
+			}
+
+			long first = Long.parseLong(spec.substring(0, dash).trim());
+			long last = Long.parseLong(spec.substring(dash + 1, slash).trim());
+			long length = Long.parseLong(spec.substring(slash + 1).trim());
+			if (first < 0 || last < first || last >= length) {
+				return null;
+			}
+			return new long[] { first, last, length };
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Head of a 206 response carrying the given range of a cached response.
+	 */
+	private static HttpHead rangeHead(CacheEntry entry, long[] range, boolean keepAlive) {
+		HttpHead head = entry.responseHead(keepAlive);
+		head.setStatus(206, "Partial Content");
+		head.set("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + entry.length);
+		head.set("Content-Length", Long.toString(range[1] - range[0] + 1));
+		return head;
+	}
+
+	private static byte[] rangeNotSatisfiable(long length, boolean keepAlive) {
+		String response = "HTTP/1.1 416 Range Not Satisfiable\r\nContent-Range: bytes */" + length
+				+ "\r\nContent-Length: 0\r\nConnection: " + (keepAlive ? "keep-alive" : "close") + "\r\n\r\n";
+		return response.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Append-only log of changes to the cache, replayed on startup so the
+	 * cached files stay usable across restarts. Every record carries a
+	 * CRC32 of its contents, so a record torn by a crash is detected and the
+	 * log is cut back to the last complete one. Records are synced to disk
+	 * in batches on the cache storer, so a crash can also lose those written
+	 * since the last sync. The log is compacted into a temporary file and
+	 * renamed over the old one when it has grown well beyond the number of
+	 * live entries.
+	 */
+	static class CacheIndex {
+		private static final byte PUT = 1;
+		private static final byte REMOVE = 2;
+		private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+		private final File file;
+		private final CRC32 crc = new CRC32();
+		private FileOutputStream logFile;
+		private DataOutputStream log;
+		private int records = 0;
+		private boolean syncPending = false;
+
+		private CacheIndex(File file) {
+			this.file = file;
+		}
+
+		/**
+		 * Loads the entries recorded in the index into the cache, keeping
+		 * only those whose files are still complete, and opens it for more.
+		 */
+		static CacheIndex open(File file, ConcurrentHashMap<String, CacheEntry> cache) throws IOException {
+			CacheIndex index = new CacheIndex(file);
+
+			if (file.exists()) {
+				index.replay(cache);
+			}
+
+			Iterator<Map.Entry<String, CacheEntry>> entries = cache.entrySet().iterator();
+			while (entries.hasNext()) {
+				CacheEntry entry = entries.next().getValue();
+				if (new File(entry.filename).length() != entry.length) {
+					entries.remove();
+				}
+			}
+
+			index.compact(cache);
+			return index;
+		}
+
+		/**
+		 * Stores the entry, returning the one it replaced if any.
+		 */
+		synchronized CacheEntry put(ConcurrentHashMap<String, CacheEntry> cache, String URI, CacheEntry entry) {
+			CacheEntry previous = cache.put(URI, entry);
+			append(PUT, URI, entry, cache);
+			return previous;
+		}
+
+		synchronized boolean replace(ConcurrentHashMap<String, CacheEntry> cache, String URI, CacheEntry stale,
+				CacheEntry entry) {
+			if (cache.replace(URI, stale, entry)) {
+				append(PUT, URI, entry, cache);
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Removes the URI's entry, or only the given entry if not null, and
+		 * returns what was removed.
+		 */
+		synchronized CacheEntry remove(ConcurrentHashMap<String, CacheEntry> cache, String URI, CacheEntry entry) {
+			CacheEntry removed = (entry == null) ? cache.remove(URI) : (cache.remove(URI, entry) ? entry : null);
+			if (removed != null) {
+				append(REMOVE, URI, null, cache);
+			}
+			return removed;
+		}
+
+		private void replay(ConcurrentHashMap<String, CacheEntry> cache) throws IOException {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+			long valid = 0;
+
+			try {
+				while (true) {
+					byte[] record = readRecord(in);
+					if (record == null) {
+						break;
+					}
+
+					DataInputStream fields = new DataInputStream(new ByteArrayInputStream(record));
+					byte type = fields.readByte();
+					String URI = readString(fields);
+
+					if (type == PUT) {
+						String filename = readString(fields);
+						long length = fields.readLong();
+						long storedAt = fields.readLong();
+						long initialAge = fields.readLong();
+						long freshUntil = fields.readLong();
+						HttpHead head = HttpHead.parse(readString(fields));
+						String varyKey = (fields.available() > 0) ? readString(fields) : "";
+						cache.put(URI, new CacheEntry(filename, head, length, varyKey, storedAt, initialAge,
+								freshUntil));
+					} else {
+						cache.remove(URI);
+					}
+
+					valid += 4 + 8 + record.length;
+					records++;
+				}
+			} finally {
+				in.close();
+			}
+
+			if (valid < file.length()) {
+				System.out.println("Cache index damaged after " + records + " records, discarding the rest");
+			}
+		}
+
+		/**
+		 * Reads one record, or returns null at the end of the log or at a
+		 * record that is incomplete or fails its checksum.
+		 */
+		private byte[] readRecord(DataInputStream in) throws IOException {
+			try {
+				int length = in.readInt();
+				long checksum = in.readLong();
+				if (length <= 0 || length > MAX_RECORD_SIZE) {
+					return null;
+				}
+
+				byte[] record = new byte[length];
+				in.readFully(record);
+
+				crc.reset();
+				crc.update(record, 0, record.length);
+				return (crc.getValue() == checksum) ? record : null;
+			} catch (EOFException e) {
+				return null;
+			}
+		}
+
+		private void append(byte type, String URI, CacheEntry entry, ConcurrentHashMap<String, CacheEntry> cache) {
+			try {
+				writeRecord(log, type, URI, entry);
+				log.flush();
+				records++;
+				syncLater();
+
+				if (records > 2 * cache.size() + 1000) {
+					compact(cache);
+				}
+			} catch (IOException e) {
+				System.out.println("Error writing cache index: " + e);
+			}
+		}
+
+		/**
+		 * Rewrites the index with only the live entries, atomically.
+		 */
+		private void compact(ConcurrentHashMap<String, CacheEntry> cache) throws IOException {
+			File temp = new File(file.getPath() + ".tmp");
+			FileOutputStream out = new FileOutputStream(temp);
+			DataOutputStream compacted = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+			int written = 0;
+
+			try {
+				for (Map.Entry<String, CacheEntry> entry : cache.entrySet()) {
+					writeRecord(compacted, PUT, entry.getKey(), entry.getValue());
+					written++;
+				}
+				compacted.flush();
+				out.getFD().sync();
+			} finally {
+				compacted.close();
+			}
+
+			/** The old log stays open until the new one is in place, so a
+			 *  failed rename leaves appends going to it **/
+			try {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				temp.delete();
+				throw e;
+			}
+
+			DataOutputStream previous = log;
+			logFile = new FileOutputStream(file, true);
+			log = new DataOutputStream(logFile);
+			records = written;
+			closeQuietly(previous);
+		}
+
+		/**
+		 * Syncs the log on the cache storer unless a sync is already due,
+		 * so records appended meanwhile share it.
+		 */
+		private void syncLater() {
+			if (syncPending) {
+				return;
+			}
+
+			syncPending = true;
+			cacheStorer.execute(new Runnable() {
+				@Override
+				public void run() {
+					sync();
+				}
+			});
+		}
+
+		private void sync() {
+			FileOutputStream out;
+			synchronized (this) {
+				syncPending = false;
+				out = logFile;
+			}
+
+			try {
+				out.getFD().sync();
+			} catch (IOException e) {
+				synchronized (this) {
+					if (out == logFile) {
+						System.out.println("Error syncing cache index: " + e);
+					}
+				}
+			}
+		}
+
+		private void writeRecord(DataOutputStream out, byte type, String URI, CacheEntry entry) throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream fields = new DataOutputStream(bytes);
+
+			fields.writeByte(type);
+			writeString(fields, URI);
+			if (type == PUT) {
+				writeString(fields, entry.filename);
+				fields.writeLong(entry.length);
+				fields.writeLong(entry.storedAt);
+				fields.writeLong(entry.initialAge);
+				fields.writeLong(entry.freshUntil);
+				writeString(fields, entry.head.toString());
+				writeString(fields, entry.varyKey);
+			}
+
+			byte[] record = bytes.toByteArray();
+			crc.reset();
+			crc.update(record, 0, record.length);
+
+			/** One write per record, so a crash tears at most the last one **/
+			ByteBuffer framed = ByteBuffer.allocate(4 + 8 + record.length);
+			framed.putInt(record.length);
+			framed.putLong(crc.getValue());
+			framed.put(record);
+			out.write(framed.array());
+		}
+
+		private static void writeString(DataOutputStream out, String value) throws IOException {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+
+		private static String readString(DataInputStream in) throws IOException {
+			byte[] bytes = new byte[in.readInt()];
+			in.readFully(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * Keeps the files in the cache within their disk budget. Once the budget
+	 * is exceeded, the least recently used entries are removed and their
+	 * files deleted until usage falls back below the low watermark, which
+	 * leaves room for a burst of new responses before evicting again. Runs
+	 * in the background, both periodically and when a store goes over.
+	 */
+	static class DiskEvictor {
+		private static final int LOW_WATERMARK_PERCENT = 90;
+		private static final long PERIOD = 5000;
+
+		private final long limit;
+		private final AtomicLong used = new AtomicLong();
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+		private ScheduledExecutorService evictor;
+
+		DiskEvictor(long limit) {
+			this.limit = limit;
+		}
+
+		void start() {
+			evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "disk-evictor");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+			evictor.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					evictIfOver();
+				}
+			}, PERIOD, PERIOD, TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		 * Accounts for a change in the bytes cached, waking the evictor if it
+		 * takes usage over the budget.
+		 */
+		void added(long bytes) {
+			long usage = used.addAndGet(bytes);
+			if (usage > limit && evictor != null && scheduled.compareAndSet(false, true)) {
+				try {
+					evictor.execute(new Runnable() {
+						@Override
+						public void run() {
+							scheduled.set(false);
+							evictIfOver();
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					scheduled.set(false);
+				}
+			}
+		}
+
+		long used() {
+			return used.get();
+		}
+
+		private void evictIfOver() {
+			if (used.get() <= limit) {
+				return;
+			}
+
+			try {
+				evict(limit / 100 * LOW_WATERMARK_PERCENT);
+			} catch (RuntimeException e) {
+				System.out.println("Error evicting from the cache: " + e);
+			}
+		}
+
+		private void evict(long target) {
+			ArrayList<Map.Entry<String, CacheEntry>> entries = new ArrayList<Map.Entry<String, CacheEntry>>(
+					cache.entrySet());
+			entries.sort(new Comparator<Map.Entry<String, CacheEntry>>() {
+				@Override
+				public int compare(Map.Entry<String, CacheEntry> a, Map.Entry<String, CacheEntry> b) {
+					return Long.compare(a.getValue().lastAccess, b.getValue().lastAccess);
+				}
+			});
+
+			int evicted = 0;
+			for (Map.Entry<String, CacheEntry> entry : entries) {
+				if (used.get() <= target) {
+					break;
+				}
+
+				/** Skip entries replaced since the snapshot **/
+				if (removeFromCache(entry.getKey(), entry.getValue())) {
+					evicted++;
+				}
+			}
+
+			System.out.println("Evicted " + evicted + " cached responses, " + used.get() + " bytes left on disk");
+		}
+	}
+
+	/**
+	 * Whether a response may be stored and reused for later requests.
+	 */
+	private static boolean isCacheable(HttpHead request, HttpHead response) {
+		if (!CACHEABLE_STATUSES.contains(response.status())) {
+			return false;
+		}
+		if (cacheDirective(response, "no-store") != null || cacheDirective(response, "private") != null
+				|| cacheDirective(request, "no-store") != null || response.hasToken("Vary", "*")) {
+			return false;
+		}
+		if (request.get("Authorization") != null && cacheDirective(response, "public") == null
+				&& cacheDirective(response, "s-maxage") == null) {
+			return false;
+		}
+
+		/** Worth keeping only if it can be served fresh or revalidated later **/
+		return freshnessLifetime(response) > 0 || response.get("ETag") != null
+				|| response.get("Last-Modified") != null;
+	}
+
+	/**
+	 * Whether the client insists on the server confirming a cached copy.
+	 */
+	private static boolean requiresRevalidation(HttpHead request) {
+		return cacheDirective(request, "no-cache") != null || "0".equals(cacheDirective(request, "max-age"))
+				|| request.hasToken("Pragma", "no-cache");
+	}
+
+	/**
+	 * How long (ms) a response stays fresh: from s-maxage or max-age, else
+	 * Expires, else a tenth of the time since Last-Modified (at most a day).
+	 */
+	private static long freshnessLifetime(HttpHead response) {
+		if (cacheDirective(response, "no-cache") != null) {
+			return 0;
+		}
+
+		long maxAge = parseSeconds(cacheDirective(response, "s-maxage"));
+		if (maxAge < 0) {
+			maxAge = parseSeconds(cacheDirective(response, "max-age"));
+		}
+		if (maxAge >= 0) {
+			return maxAge * 1000;
+		}
+
+		long date = parseDate(response.get("Date"), System.currentTimeMillis());
+		if (response.get("Expires") != null) {
+			return Math.max(parseDate(response.get("Expires"), 0) - date, 0);
+		}
+
+		long lastModified = parseDate(response.get("Last-Modified"), -1);
+		if (lastModified > 0 && lastModified < date) {
+			return Math.min((date - lastModified) / 10, HEURISTIC_LIFETIME);
+		}
+		return 0;
+	}
+
+	/**
+	 * Age (ms) a response already had when it was received.
+	 */
+	private static long initialAge(HttpHead response, long requestTime, long responseTime) {
+		long ageValue = Math.max(parseSeconds(response.get("Age")), 0) * 1000;
+		long apparentAge = Math.max(responseTime - parseDate(response.get("Date"), responseTime), 0);
+		return Math.max(ageValue, apparentAge) + (responseTime - requestTime);
+	}
+
+	/**
+	 * Asks the server to answer 304 if the cached copy is still valid.
+	 */
+	private static void addValidators(HttpHead forward, CacheEntry stale) {
+		if (stale == null) {
+			return;
+		}
+		if (stale.etag != null) {
+			forward.set("If-None-Match", stale.etag);
+		}
+		if (stale.lastModified != null) {
+			forward.set("If-Modified-Since", stale.lastModified);
+		}
+	}
+
+	/**
+	 * Value of a Cache-Control directive, "" if it has none, or null if the
+	 * directive is absent.
+	 */
+	private static String cacheDirective(HttpHead head, String directive) {
+		String value = head.get("Cache-Control");
+		if (value == null) {
+			return null;
+		}
+
+		for (String part : value.split(",")) {
+			part = part.trim();
+			int equals = part.indexOf('=');
+			String name = (equals == -1) ? part : part.substring(0, equals).trim();
+
+			if (name.equalsIgnoreCase(directive)) {
+				return (equals == -1) ? "" : part.substring(equals + 1).trim().replace("\"", "");
+			}
+		}
+		return null;
+	}
+
+	private static long parseSeconds(String value) {
+		if (value == null) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Parses an HTTP date into epoch milliseconds, or returns the fallback
+	 * if it is missing or invalid.
+	 */
+	private static long parseDate(String value, long fallback) {
+		if (value == null) {
+			return fallback;
+		}
+		try {
+			return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+		} catch (DateTimeParseException e) {
+			return fallback;
+		}
+	}
+
+	/**
+	 * Changes to the cache go through the index so they survive a restart.
+	 */
+	private static void storeInCache(String URI, CacheEntry entry) {
+		CacheEntry previous = cacheIndex.put(cache, URI, entry);
+		diskEvictor.added(entry.length - ((previous == null) ? 0 : previous.length));
+		if (previous != null && !previous.filename.equals(entry.filename)) {
+			discardBody(previous);
+		}
+	}
+
+	private static void replaceInCache(String URI, CacheEntry stale, CacheEntry entry) {
+		if (cacheIndex.replace(cache, URI, stale, entry)) {
+			diskEvictor.added(entry.length - stale.length);
+		}
+	}
+
+	private static void removeFromCache(String URI) {
+		CacheEntry removed = cacheIndex.remove(cache, URI, null);
+		if (removed != null) {
+			diskEvictor.added(-removed.length);
+			discardBody(removed);
+		}
+	}
+
+	/**
+	 * Removes the entry if it is still the URI's, returning whether it was.
+	 */
+	private static boolean removeFromCache(String URI, CacheEntry entry) {
+		boolean removed = cacheIndex.remove(cache, URI, entry) != null;
+		if (removed) {
+			diskEvictor.added(-entry.length);
+			discardBody(entry);
+		}
+		return removed;
+	}
+
+	/**
+	 * Deletes the body of an entry no longer in the cache. Requests still
+	 * sending it keep the file open, or hold its bytes, until they are done.
+	 */
+	private static void discardBody(CacheEntry entry) {
+		memoryCache.remove(entry.filename);
+		new File(entry.filename).delete();
+	}
+
+	/**
+	 * Where to keep the body of a response in the cache. The file is named
+	 * by a SHA-256 hash of everything the response is cached under, the
+	 * whole URI (scheme, host, port, path and query) and the variant, so two
+	 * responses never share a file, and a file left from before a restart
+	 * cannot be taken for another response's. A suffix from the clock and a
+	 * counter gives every response stored under the same key a file of its
+	 * own, so a new one never overwrites the body of the entry still being
+	 * served. Files are spread over two levels of directories by the hash
+	 * so that no directory grows too large to search quickly.
+	 */
+	private static String cacheFilename(String URI, String varyKey) {
+		byte[] hash;
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(URI.getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) '\n');
+			hash = digest.digest(varyKey.getBytes(StandardCharsets.UTF_8));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is missing", e);	// Every Java platform has it
+		}
+
+		StringBuilder name = new StringBuilder(hash.length * 2);
+		for (byte b : hash) {
+			name.append(Character.forDigit((b >>> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+
+		name.append('.').append(Long.toHexString(System.currentTimeMillis()))
+				.append(Long.toHexString(cacheFiles.incrementAndGet()));
+
+		return CACHE_DIR + File.separator + name.substring(0, 2) + File.separator + name.substring(2, 4)
+				+ File.separator + name;
+	}
+
+	/**
+	 * Deletes what an earlier run left unfinished in the cache directory:
+	 * the parts of partial entries, which are only tracked in memory, and
+	 * cache files that were still being written. Returns how many there were.
+	 */
+	private static int removeLeftovers(File directory) {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return 0;
+		}
+
+		int removed = 0;
+		for (File file : files) {
+			if (file.isDirectory()) {
+				removed += removeLeftovers(file);
+			} else if ((file.getName().endsWith(".part") || file.getName().endsWith(".tmp")) && file.delete()) {
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Temporary file beside a cache file, to be renamed over it when complete.
+	 */
+	private static File createTempFile(File file) throws IOException {
+		File directory = file.getAbsoluteFile().getParentFile();
+		Files.createDirectories(directory.toPath());
+		return File.createTempFile(file.getName(), ".tmp", directory);
+	}
+
+	/**
+	 * Whether the sender of a message expects the connection to stay open.
+	 */
+	private static boolean isPersistent(HttpHead head) {
+		if (head.hasToken("Connection", "close") || head.hasToken("Proxy-Connection", "close")) {
+			return false;
+		}
+		if (head.version().equals("HTTP/1.1")) {
+			return true;
+		}
+		return head.hasToken("Connection", "keep-alive") || head.hasToken("Proxy-Connection", "keep-alive");
+	}
+
+	/**
+	 * Removes the headers that only describe a single connection, including
+	 * any the message names in its Connection header. Transfer-Encoding is
+	 * left to the caller, who decides how the body is framed.
+	 */
+	private static void stripHopByHop(HttpHead head) {
+		String connection = head.get("Connection");
+		if (connection != null) {
+			for (String name : connection.split(",")) {
+				name = name.trim();
+				if (!name.isEmpty() && !name.equalsIgnoreCase("Transfer-Encoding")) {
+					head.remove(name);
+				}
+			}
+		}
+
+		for (String name : HOP_BY_HOP) {
+			head.remove(name);
+		}
+	}
+
+	/**
+	 * Request to forward to the server: the absolute-form URI a proxy
+	 * receives is rewritten to the origin-form a server expects, the Host
+	 * header is made to match it, and hop-by-hop headers are dropped.
+	 */
+	private static HttpHead rewriteRequest(HttpHead request, URI uri, String version) {
+		HttpHead forward = request.copy();
+		forward.setVersion(version);
+
+		String path = uri.getRawPath();
+		if (path == null || path.isEmpty()) {
+			path = "/";
+		}
+		if (uri.getRawQuery() != null) {
+			path += "?" + uri.getRawQuery();
+		}
+		forward.setUri(path);
+
+		forward.set("Host", (uri.getPort() == -1) ? uri.getHost() : uri.getHost() + ":" + uri.getPort());
+		stripHopByHop(forward);
+		return forward;
+	}
+
+	/**
+	 * Head to store for a response, without anything about how it was framed.
+	 */
+	private static HttpHead cacheHead(HttpHead response) {
+		HttpHead head = response.copy();
+		head.setVersion("HTTP/1.1");
+		stripHopByHop(head);
+		head.remove("Transfer-Encoding");
+		head.remove("Content-Length");
+		return head;
+	}
+
+	/**
+	 * Length of a request body, 0 if it has none, or CHUNKED.
+	 */
+	private static long requestBodyLength(HttpHead request) {
+		if (request.get("Transfer-Encoding") != null && !request.hasToken("Transfer-Encoding", "identity")) {
+			return CHUNKED;
+		}
+		return parseLength(request.get("Content-Length"), 0);
+	}
+
+	/**
+	 * Length of a response body, 0 if it has none, CHUNKED, or UNTIL_CLOSE
+	 * when only the end of the connection marks where it ends.
+	 */
+	private static long responseBodyLength(String method, HttpHead response) {
+		int status = response.status();
+		if (method.equals("HEAD") || (status >= 100 && status < 200) || status == 204 || status == 304) {
+			return 0;
+		}
+		if (response.get("Transfer-Encoding") != null && !response.hasToken("Transfer-Encoding", "identity")) {
+			return CHUNKED;
+		}
+		return parseLength(response.get("Content-Length"), UNTIL_CLOSE);
+	}
+
+	private static long parseLength(String value, long missing) {
+		if (value == null) {
+			return missing;
+		}
+		try {
+			long length = Long.parseLong(value.trim());
+			if (length < 0) {
+				throw new IllegalArgumentException("Negative Content-Length");
+			}
+			return length;
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Malformed Content-Length: " + value);
+		}
+	}
+
+	/**
+	 * In-memory tier bounded by total bytes, organised as W-TinyLFU: new
+	 * responses enter a small LRU window, and a response leaving the window
+	 * only displaces the main LRU's victim if it has been requested more
+	 * often, so one-off responses cannot flush the hot set.
+	 */
+	static class MemoryCache {
+		private static final int WINDOW_PERCENT = 1;
+
+		private final long windowCapacity;
+		private final long mainCapacity;
+		private final int maxObjectSize;
+		private final FrequencySketch sketch = new FrequencySketch();
+
+		private final LinkedHashMap<String, byte[]> window = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+		private final LinkedHashMap<String, byte[]> main = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+		private long windowSize = 0;
+		private long mainSize = 0;
+
+		private final AtomicLong hits = new AtomicLong();
+		private final AtomicLong misses = new AtomicLong();
+		private final AtomicLong evictions = new AtomicLong();
+		private final AtomicLong rejections = new AtomicLong();
+
+		MemoryCache(long capacity, int maxObjectSize) {
+			this.windowCapacity = Math.max(capacity * WINDOW_PERCENT / 100, maxObjectSize);
+			this.mainCapacity = Math.max(capacity - windowCapacity, 0);
+			this.maxObjectSize = maxObjectSize;
+		}
+
+		synchronized byte[] get(String key) {
+			sketch.increment(key);
+
+			byte[] value = window.get(key);
+			if (value == null) {
+				value = main.get(key);
+			}
+
+			if (value == null) {
+				misses.incrementAndGet();
+			} else {
+				hits.incrementAndGet();
+			}
+			return value;
+		}
+
+		synchronized void put(String key, byte[] value) {
+			remove(key);
+			if (value.length > maxObjectSize) {
+				rejections.incrementAndGet();
+				return;
+			}
+
+			window.put(key, value);
+			windowSize += value.length;
+
+			while (windowSize > windowCapacity) {
+				Iterator<Map.Entry<String, byte[]>> eldest = window.entrySet().iterator();
+				Map.Entry<String, byte[]> candidate = eldest.next();
+				eldest.remove();
+				windowSize -= candidate.getValue().length;
+				admit(candidate.getKey(), candidate.getValue());
+			}
+		}
+
+		synchronized void remove(String key) {
+			byte[] value = window.remove(key);
+			if (value != null) {
+				windowSize -= value.length;
+			}
+
+			value = main.remove(key);
+			if (value != null) {
+				mainSize -= value.length;
+			}
+		}
+
+		/**
+		 * Moves a response evicted from the window into the main segment if
+		 * it is requested more often than every victim it would displace.
+		 */
+		private void admit(String key, byte[] value) {
+			int frequency = sketch.frequency(key);
+
+			while (mainSize + value.length > mainCapacity) {
+				Iterator<Map.Entry<String, byte[]>> eldest = main.entrySet().iterator();
+				if (!eldest.hasNext()) {
+					rejections.incrementAndGet();
+					return;
+				}
+
+				Map.Entry<String, byte[]> victim = eldest.next();
+				if (frequency <= sketch.frequency(victim.getKey())) {
+					rejections.incrementAndGet();
+					return;
+				}
+
+				eldest.remove();
+				mainSize -= victim.getValue().length;
+				evictions.incrementAndGet();
+			}
+
+			main.put(key, value);
+			mainSize += value.length;
+		}
+
+		synchronized long size() {
+			return windowSize + mainSize;
+		}
+
+		synchronized int count() {
+			return window.size() + main.size();
+		}
+
+		long hits() {
+			return hits.get();
+		}
+
+		long misses() {
+			return misses.get();
+		}
+
+		long evictions() {
+			return evictions.get();
+		}
+
+		long rejections() {
+			return rejections.get();
+		}
+
+		@Override
+		public String toString() {
+			return "memory cache: " + count() + " objects, " + size() + " bytes, " + hits() + " hits, "
+					+ misses() + " misses, " + evictions() + " evictions, " + rejections() + " rejections";
+		}
+	}
+
+	/**
+	 * Count-min sketch of request frequencies with 4-bit style saturating
+	 * counters. All counters are halved once enough increments have been
+	 * seen so that old popularity fades.
+	 */
+	static class FrequencySketch {
+		private static final int DEPTH = 4;
+		private static final int WIDTH = 1 << 16;
+		private static final int MAX_COUNT = 15;
+		private static final int SAMPLE_SIZE = WIDTH * 10;
+		private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+
+		private final byte[][] counters = new byte[DEPTH][WIDTH];
+		private int additions = 0;
+
+		void increment(String key) {
+			int hash = key.hashCode();
+			boolean added = false;
+
+			for (int i = 0; i < DEPTH; i++) {
+				int index = indexOf(hash, i);
+				if (counters[i][index] < MAX_COUNT) {
+					counters[i][index]++;
+					added = true;
+				}
+			}
+
+			if (added && ++additions == SAMPLE_SIZE) {
+				reset();
+			}
+		}
+
+		int frequency(String key) {
+			int hash = key.hashCode();
+			int frequency = MAX_COUNT;
+
+			for (int i = 0; i < DEPTH; i++) {
+				frequency = Math.min(frequency, counters[i][indexOf(hash, i)]);
+			}
+			return frequency;
+		}
+
+		private int indexOf(int hash, int row) {
+			int h = (hash ^ SEEDS[row]) * SEEDS[row];
+			return (h ^ (h >>> 16)) & (WIDTH - 1);
+		}
+
+		private void reset() {
+			for (int i = 0; i < DEPTH; i++) {
+				for (int j = 0; j < WIDTH; j++) {
+					counters[i][j] >>= 1;
+				}
+			}
+			additions /= 2;
+		}
+	}
+
+	/**
+	 * Copy of a response being relayed, kept only while it still fits in the
+	 * memory tier, and promoted into it once the response is complete.
+	 */
+	private static class HotCopy {
+		private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		void write(byte[] buffer, int offset, int length) {
+			if (bytes == null) {
+				return;
+			}
+
+			if (bytes.size() + length > MEMORY_OBJECT_SIZE) {
+				bytes = null;
+			} else {
+				bytes.write(buffer, offset, length);
+			}
+		}
+
+		void write(ByteBuffer buffer) {
+			if (bytes == null || bytes.size() + buffer.remaining() > MEMORY_OBJECT_SIZE) {
+				bytes = null;
+				return;
+			}
+
+			byte[] copy = new byte[buffer.remaining()];
+			buffer.duplicate().get(copy);
+			write(copy, 0, copy.length);
+		}
+
+		/**
+		 * Puts the copy in the memory tier as the given entry's body.
+		 */
+		void promote(CacheEntry entry) {
+			if (bytes != null) {
+				memoryCache.put(entry.filename, bytes.toByteArray());
+			}
+		}
+	}
+
+	/**
+	 * How a request was answered, for the metrics and the access log.
+	 */
+	enum Outcome {
+		HIT, PARTIAL_HIT, COALESCED, REVALIDATED, MISS, ERROR, ADMIN
+	}
+
+	/**
+	 * Counters and latency histograms for the whole proxy. Everything is
+	 * updated without locks, so recording a request costs a few atomic adds.
+	 */
+	static class Metrics {
+		private final long startedAt = System.currentTimeMillis();
+		private final LongAdder[] outcomes = new LongAdder[Outcome.values().length];
+		private final LongAdder badRequests = new LongAdder();
+		private final LongAdder bytesToClients = new LongAdder();
+		private final AtomicInteger connections = new AtomicInteger();
+		private final LongAdder connectionsAccepted = new LongAdder();
+		private final LatencyHistogram firstByte = new LatencyHistogram();
+		private final LatencyHistogram total = new LatencyHistogram();
+
+		Metrics() {
+			for (int i = 0; i < outcomes.length; i++) {
+				outcomes[i] = new LongAdder();
+			}
+		}
+
+		void connectionOpened() {
+			connections.incrementAndGet();
+			connectionsAccepted.increment();
+		}
+
+		void connectionClosed() {
+			connections.decrementAndGet();
+		}
+
+		void badRequest() {
+			badRequests.increment();
+		}
+
+		/**
+		 * Records a finished request. Times are System.nanoTime() readings;
+		 * firstByteAt is 0 if nothing was sent.
+		 */
+		void record(Outcome outcome, long startedAt, long firstByteAt, long finishedAt, long bytes) {
+			outcomes[outcome.ordinal()].increment();
+			bytesToClients.add(bytes);
+			if (firstByteAt != 0) {
+				firstByte.record((firstByteAt - startedAt) / 1000);
+			}
+			total.record((finishedAt - startedAt) / 1000);
+		}
+
+		/**
+		 * The metrics as plain text, one "name value" line each.
+		 */
+		String report() {
+			StringBuilder text = new StringBuilder();
+			line(text, "proxy_uptime_seconds", (System.currentTimeMillis() - startedAt) / 1000);
+			for (Outcome outcome : Outcome.values()) {
+				line(text, "proxy_requests_total{outcome=\"" + outcome + "\"}", outcomes[outcome.ordinal()].sum());
+			}
+			line(text, "proxy_bad_requests_total", badRequests.sum());
+			line(text, "proxy_bytes_to_clients_total", bytesToClients.sum());
+			line(text, "proxy_connections_active", connections.get());
+			line(text, "proxy_connections_accepted_total", connectionsAccepted.sum());
+			line(text, "proxy_cache_entries", cache.size());
+			line(text, "proxy_cache_disk_bytes", diskEvictor.used());
+			line(text, "proxy_cache_partial_entries", partials.size());
+			line(text, "proxy_cache_memory_objects", memoryCache.count());
+			line(text, "proxy_cache_memory_bytes", memoryCache.size());
+			line(text, "proxy_fills_in_progress", fills.size());
+			line(text, "proxy_origin_circuits_open", origins.openCircuits());
+			line(text, "proxy_origin_fast_failures_total", origins.rejected.get());
+			firstByte.report(text, "proxy_first_byte_microseconds");
+			total.report(text, "proxy_request_microseconds");
+			text.append("# ").append(memoryCache).append('\n');
+			text.append("# ").append(connectionPool).append('\n');
+			text.append("# ").append(origins).append('\n');
+			return text.toString();
+		}
+
+		private static void line(StringBuilder text, String name, long value) {
+			text.append(name).append(' ').append(value).append('\n');
+		}
+	}
+
+	/**
+	 * Histogram of latencies in microseconds, in the manner of HdrHistogram:
+	 * values are counted in buckets that are linear within each power of
+	 * two, 64 to a power, so any percentile read back is within about 1.6%
+	 * of the true value while the whole range from 1 us to hours takes a
+	 * few thousand counters.
+	 */
+	static class LatencyHistogram {
+		private static final int SUB_BUCKET_BITS = 7;
+		private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+		private static final int HALF = SUB_BUCKETS / 2;
+		private static final int MAX_EXPONENT = 40;
+		private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+		private final AtomicLongArray counts = new AtomicLongArray(SUB_BUCKETS + MAX_EXPONENT * HALF);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+		private final AtomicLong max = new AtomicLong();
+
+		void record(long value) {
+			value = Math.max(value, 0);
+			counts.incrementAndGet(indexOf(value));
+			count.increment();
+			sum.add(value);
+
+			long current = max.get();
+			while (value > current && !max.compareAndSet(current, value)) {
+				current = max.get();
+			}
+		}
+
+		/**
+		 * Smallest value at or below which the given fraction of values lie,
+		 * reported as the top of its bucket.
+		 */
+		long percentile(double quantile) {
+			long total = 0;
+			for (int i = 0; i < counts.length(); i++) {
+				total += counts.get(i);
+			}
+			if (total == 0) {
+				return 0;
+			}
+
+			long target = Math.max(1, (long) Math.ceil(quantile * total));
+			long seen = 0;
+			for (int i = 0; i < counts.length(); i++) {
+				seen += counts.get(i);
+				if (seen >= target) {
+					return Math.min(highestIn(i), max.get());
+				}
+			}
+			return max.get();
+		}
+
+		void report(StringBuilder text, String name) {
+			for (double quantile : QUANTILES) {
+				Metrics.line(text, name + "{quantile=\"" + quantile + "\"}", percentile(quantile));
+			}
+			Metrics.line(text, name + "_max", max.get());
+			Metrics.line(text, name + "_sum", sum.sum());
+			Metrics.line(text, name + "_count", count.sum());
+		}
+
+		private static int indexOf(long value) {
+			if (value < SUB_BUCKETS) {
+				return (int) value;
+			}
+
+			int exponent = Math.min(63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1), MAX_EXPONENT);
+			long subBucket = Math.min(value >>> exponent, SUB_BUCKETS - 1);
+			return exponent * HALF + (int) subBucket;
+		}
+
+		private static long highestIn(int index) {
+			if (index < SUB_BUCKETS) {
+				return index;
+			}
+
+			int exponent = (index - HALF) / HALF;
+			long subBucket = index - exponent * HALF;
+			return ((subBucket + 1) << exponent) - 1;
+		}
+	}
+
+	/**
+	 * Access log written by a background thread, so requests never wait on
+	 * the console. Requests are sampled at the configured rate, except
+	 * errors, which are always logged; lines that find the queue full are
+	 * dropped and counted.
+	 */
+	static class AccessLog {
+		private final double sampleRate;
+		private final ArrayBlockingQueue<String> queue = new ArrayBlockingQueue<String>(ACCESS_LOG_QUEUE);
+		private final AtomicLong dropped = new AtomicLong();
+
+		AccessLog(double sampleRate) {
+			this.sampleRate = sampleRate;
+		}
+
+		void start() {
+			Thread writer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (true) {
+						try {
+							System.out.println(queue.take());
+						} catch (InterruptedException e) {
+							return;
+						}
+
+						long lost = dropped.getAndSet(0);
+						if (lost > 0) {
+							System.out.println("access log: " + lost + " lines dropped");
+						}
+					}
+				}
+			}, "access-log");
+			writer.setDaemon(true);
+			writer.start();
+		}
+
+		void log(String client, HttpHead request, int status, Outcome outcome, long startedAt, long firstByteAt,
+				long finishedAt, long bytes) {
+			if (outcome != Outcome.ERROR && status < 500 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+				return;
+			}
+
+			String line = client + " \"" + ((request == null) ? "-" : request.method() + " " + request.uri() + " "
+					+ request.version()) + "\" " + status + " " + outcome + " " + bytes + " "
+					+ ((firstByteAt == 0) ? "-" : Long.toString((firstByteAt - startedAt) / 1000)) + "us "
+					+ ((finishedAt - startedAt) / 1000) + "us";
+			if (!queue.offer(line)) {
+				dropped.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Sits under a client connection's buffered stream and measures each
+	 * request on it: when its first byte goes out, how many follow, and the
+	 * status it was answered with, read off the start of the response.
+	 */
+	private static class RequestMeter extends FilterOutputStream {
+		private final String client;
+		private long startedAt;
+		private long firstByteAt;
+		private long bytes;
+		private int status;
+		private Outcome outcome;
+
+		RequestMeter(OutputStream out, String client) {
+			super(out);
+			this.client = client;
+		}
+
+		void start() {
+			startedAt = System.nanoTime();
+			firstByteAt = 0;
+			bytes = 0;
+			status = 0;
+			outcome = Outcome.MISS;
+		}
+
+		void setOutcome(Outcome outcome) {
+			this.outcome = outcome;
+		}
+
+		/**
+		 * Accounts for bytes sent around the stream, straight to the socket.
+		 */
+		void sent(long count) {
+			if (firstByteAt == 0) {
+				firstByteAt = System.nanoTime();
+			}
+			bytes += count;
+		}
+
+		void finish(HttpHead request) {
+			long finishedAt = System.nanoTime();
+			if (status >= 500) {
+				outcome = Outcome.ERROR;
+			}
+			metrics.record(outcome, startedAt, firstByteAt, finishedAt, bytes);
+			accessLog.log(client, request, status, outcome, startedAt, firstByteAt, finishedAt, bytes);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) throws IOException {
+			if (length > 0 && firstByteAt == 0) {
+				firstByteAt = System.nanoTime();
+				status = statusOf(buffer, offset, length);
+			}
+			out.write(buffer, offset, length);
+			bytes += length;
+		}
+	}
+
+	/**
+	 * Status code at the start of a response's bytes, or 0 if they do not
+	 * start with a status line.
+	 */
+	private static int statusOf(byte[] buffer, int offset, int length) {
+		if (length < 12 || buffer[offset] != 'H' || buffer[offset + 8] != ' ') {
+			return 0;
+		}
+
+		int status = 0;
+		for (int i = offset + 9; i < offset + 12; i++) {
+			if (buffer[i] < '0' || buffer[i] > '9') {
+				return 0;
+			}
+			status = status * 10 + (buffer[i] - '0');
+		}
+		return status;
+	}
+
+	/**
+	 * Whether a request is for the proxy's own metrics. Only asked of the
+	 * proxy directly, in origin-form, from the local machine.
+	 */
+	private static boolean isAdminRequest(InetAddress client, HttpHead request) {
+		return client.isLoopbackAddress() && request.method().equals("GET") && request.uri().equals(ADMIN_PATH);
+	}
+
+	private static byte[] metricsResponse(boolean keepAlive) {
+		byte[] body = metrics.report().getBytes(StandardCharsets.ISO_8859_1);
+		String head = "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nCache-Control: no-store\r\nContent-Length: "
+				+ body.length + "\r\nConnection: " + (keepAlive ? "keep-alive" : "close") + "\r\n\r\n";
+
+		byte[] response = Arrays.copyOf(head.getBytes(StandardCharsets.ISO_8859_1), head.length() + body.length);
+		System.arraycopy(body, 0, response, head.length(), body.length);
+		return response;
+	}
+
+	/**
+	 * Write-behind stage between a response being relayed and its cache
+	 * file. Body bytes are copied into a bounded ring and written out
+	 * through an AsynchronousFileChannel, so the relay never waits on the
+	 * disk. Rings come out of a budget shared by all responses being cached,
+	 * and a response that finds it spent goes uncached. If the disk falls so
+	 * far behind that the ring fills up, the fill is dropped and the
+	 * response goes uncached rather than slowing the client down. Once the last byte is written the file is renamed into
+	 * place and the completion task runs, always on the cache storer, never
+	 * on the relay's thread or the channel's.
+	 */
+	static class WriteBehind implements Closeable, CompletionHandler<Integer, Void> {
+		private final File file;
+		private final File tempFile;
+		private final AsynchronousFileChannel channel;
+		private final byte[] ring;
+
+		/** Bytes taken into the ring and bytes written to the file so far **/
+		private long buffered = 0;
+		private long written = 0;
+		private boolean writing = false;
+		private boolean finished = false;
+		private boolean dropped = false;
+		private boolean released = false;
+		private Runnable onComplete;
+
+		/**
+		 * Opens a write-behind for the file, or returns null if it cannot
+		 * be created or the budget has no room for its ring, in which case
+		 * the response is relayed uncached.
+		 *
+		 * @param length body length if known, which bounds the ring's size
+		 */
+		static WriteBehind open(File file, long length) {
+			int size = (int) ((length >= 0) ? Math.max(1, Math.min(length, WRITE_BEHIND_SIZE)) : WRITE_BEHIND_SIZE);
+			if (writeBehindBytes.addAndGet(size) > WRITE_BEHIND_BUDGET) {
+				writeBehindBytes.addAndGet(-size);
+				System.out.println("Write-behind budget spent, not caching " + file.getName());
+				return null;
+			}
+
+			try {
+				return new WriteBehind(file, size);
+			} catch (IOException e) {
+				writeBehindBytes.addAndGet(-size);
+				System.out.println("Error opening cache file: " + e);
+				return null;
+			}
+		}
+
+		private WriteBehind(File file, int size) throws IOException {
+			this.file = file;
+			this.tempFile = createTempFile(file);
+			try {
+				this.channel = AsynchronousFileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE);
+			} catch (IOException e) {
+				tempFile.delete();
+				throw e;
+			}
+			this.ring = new byte[size];
+		}
+
+		synchronized void write(byte[] buffer, int offset, int length) {
+			if (!reserve(length)) {
+				return;
+			}
+
+			int start = (int) (buffered % ring.length);
+			int first = Math.min(length, ring.length - start);
+			System.arraycopy(buffer, offset, ring, start, first);
+			System.arraycopy(buffer, offset + first, ring, 0, length - first);
+			buffered += length;
+			startWrite();
+		}
+
+		/**
+		 * Takes a copy of [position, limit) of the buffer without moving it.
+		 */
+		synchronized void write(ByteBuffer buffer) {
+			int length = buffer.remaining();
+			if (!reserve(length)) {
+				return;
+			}
+
+			ByteBuffer source = buffer.duplicate();
+			int start = (int) (buffered % ring.length);
+			int first = Math.min(length, ring.length - start);
+			source.get(ring, start, first);
+			source.get(ring, 0, length - first);
+			buffered += length;
+			startWrite();
+		}
+
+		/**
+		 * Marks the end of the body. The file is put in place and the task
+		 * run once everything has been written, unless the fill is dropped.
+		 */
+		void finish(Runnable onComplete) {
+			synchronized (this) {
+				if (dropped) {
+					return;
+				}
+				finished = true;
+				this.onComplete = onComplete;
+				if (writing || written < buffered) {
+					return;
+				}
+			}
+			completeLater();
+		}
+
+		synchronized boolean isDropped() {
+			return dropped;
+		}
+
+		/**
+		 * Drops the fill unless its body has been finished.
+		 */
+		@Override
+		public synchronized void close() {
+			if (!finished) {
+				drop();
+			}
+		}
+
+		@Override
+		public void completed(Integer length, Void attachment) {
+			synchronized (this) {
+				writing = false;
+				if (dropped) {
+					return;
+				}
+
+				written += length;
+				if (written < buffered) {
+					startWrite();
+					return;
+				}
+				if (!finished) {
+					return;
+				}
+			}
+			completeLater();
+		}
+
+		@Override
+		public synchronized void failed(Throwable e, Void attachment) {
+			writing = false;
+			if (!dropped) {
+				System.out.println("Error writing cache file: " + e);
+				drop();
+			}
+		}
+
+		private boolean reserve(int length) {
+			if (dropped) {
+				return false;
+			}
+			if (buffered - written + length > ring.length) {
+				System.out.println("Disk is behind, not caching " + file.getName());
+				drop();
+				return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Writes out the next stretch of the ring unless a write is already
+		 * in flight. Bytes are only freed for reuse once written.
+		 */
+		private void startWrite() {
+			if (writing || written == buffered) {
+				return;
+			}
+
+			int start = (int) (written % ring.length);
+			int length = (int) Math.min(buffered - written, ring.length - start);
+			writing = true;
+			channel.write(ByteBuffer.wrap(ring, start, length), written, null, this);
+		}
+
+		private void completeLater() {
+			cacheStorer.execute(new Runnable() {
+				@Override
+				public void run() {
+					complete();
+				}
+			});
+		}
+
+		private void complete() {
+			synchronized (this) {
+				release();
+			}
+
+			try {
+				channel.close();
+				Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				System.out.println("Error storing cache file: " + e);
+				tempFile.delete();
+				return;
+			}
+			onComplete.run();
+		}
+
+		private void drop() {
+			dropped = true;
+			release();
+			closeQuietly(channel);
+			tempFile.delete();
+		}
+
+		/**
+		 * Gives the ring's bytes back to the budget, once.
+		 */
+		private void release() {
+			if (!released) {
+				released = true;
+				writeBehindBytes.addAndGet(-ring.length);
+			}
+		}
+	}
+
+	private static byte[] errorResponse(String status) {
+		String response = "HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n";
+		return response.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Sends part of a file to a blocking channel, letting the kernel copy it
+	 * directly (sendfile) where the platform supports it.
+	 */
+	private static void transferFile(FileChannel file, long position, long count, WritableByteChannel target)
+			throws IOException {
+		long end = position + count;
+		while (position < end) {
+			long sent = file.transferTo(position, end - position, target);
+			if (sent <= 0 && position >= file.size()) {
+				throw new EOFException("Cached file is shorter than expected");
+			}
+			position += sent;
+		}
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		if (closeable == null) {
+			return;
+		}
+
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			// Nothing more can be done for this connection
+		}
+	}
+}
+
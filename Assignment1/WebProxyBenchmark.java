@@ -0,0 +1,686 @@
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.io.*;
+
+/**
+ * Benchmarks for WebProxy. Starts the proxy in this JVM in front of a stub
+ * origin on loopback and measures throughput and latency under load, then
+ * times the parsing and cache lookup paths on their own.
+ *
+ *   java WebProxyBenchmark [load|micro|all]
+ *
+ * Load runs cover every combination of the sizes, hit ratios and
+ * concurrency levels given, each for a fixed time after a warmup:
+ *
+ *   -Dbench.mode=closed|open   closed: each connection sends its next request
+ *                              when the last is answered; open: requests
+ *                              are started at bench.rate per second whether
+ *                              or not earlier ones have been answered
+ *   -Dbench.rate=2000          open loop arrival rate, requests per second
+ *   -Dbench.concurrency=1,16,64  client connections
+ *   -Dbench.sizes=1024,65536,1048576  response body sizes in bytes
+ *   -Dbench.hitRatio=0,0.9     fraction of requests for already cached objects
+ *   -Dbench.duration=10        seconds measured per run
+ *   -Dbench.warmup=3           seconds run unmeasured before each
+ *
+ * Proxy settings (proxy.engine and the rest) are passed through as usual.
+ * The cache lives in a temporary directory unless proxy.cacheDir is set.
+ */
+public class WebProxyBenchmark {
+	private static final String MODE = System.getProperty("bench.mode", "closed");
+	private static final int RATE = Integer.getInteger("bench.rate", 2000);
+	private static final int[] CONCURRENCY = parseInts(System.getProperty("bench.concurrency", "1,16,64"));
+	private static final int[] SIZES = parseInts(System.getProperty("bench.sizes", "1024,65536,1048576"));
+	private static final double[] HIT_RATIOS = parseDoubles(System.getProperty("bench.hitRatio", "0,0.9"));
+	private static final int DURATION = Integer.getInteger("bench.duration", 10);
+	private static final int WARMUP = Integer.getInteger("bench.warmup", 3);
+
+	/** Objects requested for hits, per size **/
+	private static final int HOT_OBJECTS = 64;
+	private static final int BUFFER_SIZE = 65536;
+	private static final int MICRO_ROUNDS = 5;
+	private static final long MICRO_ROUND_NANOS = 500L * 1000 * 1000;
+
+	/** Keeps microbenchmark results alive so the JIT cannot drop the work **/
+	static volatile long sink;
+
+	public static void main(String args[]) throws Exception {
+		String what = (args.length > 0) ? args[0] : "all";
+
+		/** WebProxy reads its settings once, when any of its classes is first
+		 *  used, and the microbenchmarks use them too, so they go in first **/
+		File cacheDir = null;
+		if (System.getProperty("proxy.cacheDir") == null) {
+			cacheDir = Files.createTempDirectory("proxy-bench").toFile();
+			System.setProperty("proxy.cacheDir", new File(cacheDir, "cache").getPath());
+			System.setProperty("proxy.cacheIndex", new File(cacheDir, "cache.index").getPath());
+		}
+		if (System.getProperty("proxy.accessLogSample") == null) {
+			System.setProperty("proxy.accessLogSample", "0");
+		}
+
+		try {
+			if (what.equals("micro") || what.equals("all")) {
+				runMicrobenchmarks();
+			}
+			if (what.equals("load") || what.equals("all")) {
+				runLoad();
+			}
+		} finally {
+			if (cacheDir != null) {
+				delete(cacheDir);
+			}
+		}
+
+		/** The proxy's threads never exit on their own **/
+		System.exit(0);
+	}
+
+	private static void runLoad() throws Exception {
+		StubOrigin origin = new StubOrigin(max(SIZES));
+		origin.start();
+		int proxyPort = startProxy();
+
+		System.out.println("engine=" + System.getProperty("proxy.engine", "threads") + " mode=" + MODE
+				+ ((MODE.equals("open")) ? " rate=" + RATE : "") + " duration=" + DURATION + "s");
+		System.out.println(String.format("%9s %6s %5s %10s %9s %9s %9s %9s %9s %7s", "size", "hit", "conns",
+				"req/s", "MB/s", "p50_us", "p99_us", "p999_us", "max_us", "errors"));
+
+		for (int size : SIZES) {
+			for (double hitRatio : HIT_RATIOS) {
+				for (int connections : CONCURRENCY) {
+					Workload workload = new Workload(origin.port, size, hitRatio);
+					warmHotSet(proxyPort, workload);
+
+					new LoadRun(proxyPort, workload, connections, WARMUP).run();
+					Result result = new LoadRun(proxyPort, workload, connections, DURATION).run();
+					System.out.println(String.format("%9d %6.2f %5d %10.0f %9.1f %9d %9d %9d %9d %7d", size,
+							hitRatio, connections, result.throughput(), result.megabytesPerSecond(),
+							result.latency.percentile(0.5), result.latency.percentile(0.99),
+							result.latency.percentile(0.999), result.latency.percentile(1.0), result.errors));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs the proxy's own main() on a background thread and waits until it
+	 * accepts connections.
+	 */
+	private static int startProxy() throws Exception {
+		ServerSocket probe = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		final int port = probe.getLocalPort();
+		probe.close();
+
+		Thread proxy = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					WebProxy.main(new String[] { Integer.toString(port) });
+				} catch (IOException e) {
+					System.out.println("Proxy failed: " + e);
+				}
+			}
+		}, "proxy");
+		proxy.setDaemon(true);
+		proxy.start();
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while (true) {
+			try {
+				new Socket(InetAddress.getLoopbackAddress(), port).close();
+				return port;
+			} catch (IOException e) {
+				if (System.currentTimeMillis() > deadline) {
+					throw new IOException("Proxy did not start on port " + port);
+				}
+				Thread.sleep(50);
+			}
+		}
+	}
+
+	/**
+	 * Requests every object in the hot set once, so that hits are hits.
+	 */
+	private static void warmHotSet(int proxyPort, Workload workload) throws IOException {
+		Client client = new Client(proxyPort);
+		try {
+			for (int i = 0; i < HOT_OBJECTS; i++) {
+				client.get(workload.hotUri(i));
+			}
+		} finally {
+			client.close();
+		}
+	}
+
+	/**
+	 * Which URIs a run asks for. Hits come from a small set of objects that
+	 * stay cached; misses are for objects never requested before.
+	 */
+	static class Workload {
+		private static final AtomicLong nextMiss = new AtomicLong();
+		private final String base;
+		private final double hitRatio;
+
+		Workload(int originPort, int size, double hitRatio) {
+			this.base = "http://127.0.0.1:" + originPort + "/" + size + "/";
+			this.hitRatio = hitRatio;
+		}
+
+		String hotUri(int i) {
+			return base + "hot" + i;
+		}
+
+		String nextUri() {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			if (random.nextDouble() < hitRatio) {
+				return hotUri(random.nextInt(HOT_OBJECTS));
+			}
+			return base + "miss" + nextMiss.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Measurements from one run, merged across its connections.
+	 */
+	static class Result {
+		final WebProxy.LatencyHistogram latency = new WebProxy.LatencyHistogram();
+		final AtomicLong bytes = new AtomicLong();
+		final AtomicLong completed = new AtomicLong();
+		volatile long errors;
+		volatile long elapsedNanos;
+
+		double throughput() {
+			return completed.get() * 1e9 / elapsedNanos;
+		}
+
+		double megabytesPerSecond() {
+			return bytes.get() * 1e9 / elapsedNanos / (1024 * 1024);
+		}
+	}
+
+	/**
+	 * One load run over a fixed number of client connections.
+	 *
+	 * In a closed loop each connection sends its next request as soon as the
+	 * last is answered, so a slower proxy is simply offered less load. In an
+	 * open loop requests are scheduled at a fixed rate and their latency is
+	 * measured from when they were due, not from when a connection was free
+	 * to send them, so time spent queued behind a slow response counts.
+	 */
+	static class LoadRun {
+		private final int proxyPort;
+		private final Workload workload;
+		private final int connections;
+		private final long durationNanos;
+		private final Result result = new Result();
+		private final AtomicLong errors = new AtomicLong();
+		private final LinkedBlockingQueue<Long> due = new LinkedBlockingQueue<Long>();
+		private volatile boolean stopping = false;
+
+		LoadRun(int proxyPort, Workload workload, int connections, int seconds) {
+			this.proxyPort = proxyPort;
+			this.workload = workload;
+			this.connections = connections;
+			this.durationNanos = TimeUnit.SECONDS.toNanos(seconds);
+		}
+
+		Result run() throws InterruptedException {
+			final long start = System.nanoTime();
+			final long end = start + durationNanos;
+			final boolean open = MODE.equals("open");
+			final CountDownLatch done = new CountDownLatch(connections);
+
+			for (int i = 0; i < connections; i++) {
+				Thread worker = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							work(open, end);
+						} finally {
+							done.countDown();
+						}
+					}
+				}, "bench-client-" + i);
+				worker.setDaemon(true);
+				worker.start();
+			}
+
+			if (open) {
+				/** Schedule arrivals; workers pick them up as they come due **/
+				long interval = TimeUnit.SECONDS.toNanos(1) / RATE;
+				for (long next = start; next < end; next += interval) {
+					long wait = next - System.nanoTime();
+					if (wait > 0) {
+						TimeUnit.NANOSECONDS.sleep(wait);
+					}
+					due.add(next);
+				}
+				stopping = true;
+			}
+
+			done.await();
+			result.elapsedNanos = System.nanoTime() - start;
+			result.errors = errors.get();
+			return result;
+		}
+
+		private void work(boolean open, long end) {
+			Client client = null;
+			try {
+				while (true) {
+					long intended;
+					if (open) {
+						Long next = due.poll(10, TimeUnit.MILLISECONDS);
+						if (next == null) {
+							if (stopping) {
+								return;
+							}
+							continue;
+						}
+						intended = next;
+					} else {
+						intended = System.nanoTime();
+						if (intended >= end) {
+							return;
+						}
+					}
+
+					try {
+						if (client == null) {
+							client = new Client(proxyPort);
+						}
+						long length = client.get(workload.nextUri());
+						result.latency.record((System.nanoTime() - intended) / 1000);
+						result.bytes.addAndGet(length);
+						result.completed.incrementAndGet();
+					} catch (IOException e) {
+						errors.incrementAndGet();
+						closeQuietly(client);
+						client = null;
+					}
+				}
+			} catch (InterruptedException e) {
+				// Abandon the run
+			} finally {
+				closeQuietly(client);
+			}
+		}
+	}
+
+	/**
+	 * A keep-alive client connection to the proxy.
+	 */
+	static class Client implements Closeable {
+		private final int port;
+		private Socket socket;
+		private InputStream in;
+		private OutputStream out;
+		private final byte[] buffer = new byte[BUFFER_SIZE];
+
+		Client(int port) {
+			this.port = port;
+		}
+
+		/**
+		 * Fetches a URI through the proxy and returns the body length. Fails
+		 * unless the response is a 200.
+		 */
+		long get(String uri) throws IOException {
+			if (socket == null) {
+				socket = new Socket(InetAddress.getLoopbackAddress(), port);
+				socket.setTcpNoDelay(true);
+				socket.setSoTimeout(30000);
+				in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+				out = new BufferedOutputStream(socket.getOutputStream());
+			}
+
+			out.write(("GET " + uri + " HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+			out.flush();
+
+			String statusLine = readLine();
+			long length = -1;
+			boolean chunked = false;
+			boolean close = false;
+
+			for (String line = readLine(); line.length() > 0; line = readLine()) {
+				int colon = line.indexOf(':');
+				String name = line.substring(0, colon).trim();
+				String value = line.substring(colon + 1).trim();
+
+				if (name.equalsIgnoreCase("Content-Length")) {
+					length = Long.parseLong(value);
+				} else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+					chunked = value.equalsIgnoreCase("chunked");
+				} else if (name.equalsIgnoreCase("Connection")) {
+					close = value.equalsIgnoreCase("close");
+				}
+			}
+
+			long body;
+			if (chunked) {
+				body = 0;
+				for (long chunk = Long.parseLong(readLine().trim(), 16); chunk > 0;
+						chunk = Long.parseLong(readLine().trim(), 16)) {
+					skip(chunk);
+					readLine();
+					body += chunk;
+				}
+				readLine();
+			} else if (length >= 0) {
+				skip(length);
+				body = length;
+			} else {
+				throw new IOException("Response without a length");
+			}
+
+			if (close) {
+				close();
+			}
+			if (!statusLine.startsWith("HTTP/1.1 200") && !statusLine.startsWith("HTTP/1.0 200")) {
+				throw new IOException("Unexpected response: " + statusLine);
+			}
+			return body;
+		}
+
+		private void skip(long count) throws IOException {
+			while (count > 0) {
+				int read = in.read(buffer, 0, (int) Math.min(count, buffer.length));
+				if (read == -1) {
+					throw new EOFException("Proxy closed the connection inside a body");
+				}
+				count -= read;
+			}
+		}
+
+		private String readLine() throws IOException {
+			StringBuilder line = new StringBuilder();
+			int b = in.read();
+			while (b != '\n') {
+				if (b == -1) {
+					throw new EOFException("Proxy closed the connection");
+				}
+				if (b != '\r') {
+					line.append((char) b);
+				}
+				b = in.read();
+			}
+			return line.toString();
+		}
+
+		@Override
+		public void close() {
+			closeQuietly(socket);
+			socket = null;
+		}
+	}
+
+	/**
+	 * Origin server answering GET /<size>/<name> with that many bytes,
+	 * cacheable for an hour, over keep-alive connections.
+	 */
+	static class StubOrigin {
+		private final byte[] body;
+		private ServerSocket serverSocket;
+		int port;
+
+		StubOrigin(int maxSize) {
+			body = new byte[maxSize];
+			ThreadLocalRandom.current().nextBytes(body);
+		}
+
+		void start() throws IOException {
+			serverSocket = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+			port = serverSocket.getLocalPort();
+
+			Thread acceptor = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (true) {
+						try {
+							final Socket connection = serverSocket.accept();
+							Thread handler = new Thread(new Runnable() {
+								@Override
+								public void run() {
+									serve(connection);
+								}
+							}, "origin");
+							handler.setDaemon(true);
+							handler.start();
+						} catch (IOException e) {
+							return;
+						}
+					}
+				}
+			}, "origin-acceptor");
+			acceptor.setDaemon(true);
+			acceptor.start();
+		}
+
+		private void serve(Socket connection) {
+			try {
+				connection.setTcpNoDelay(true);
+				BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(),
+						StandardCharsets.ISO_8859_1));
+				OutputStream out = new BufferedOutputStream(connection.getOutputStream(), BUFFER_SIZE);
+
+				for (String requestLine = in.readLine(); requestLine != null; requestLine = in.readLine()) {
+					boolean close = false;
+					for (String line = in.readLine(); line != null && line.length() > 0; line = in.readLine()) {
+						close |= line.equalsIgnoreCase("Connection: close");
+					}
+
+					String[] parts = requestLine.split(" ");
+					String[] path = (parts.length > 1) ? parts[1].split("/") : new String[0];
+					int size = -1;
+					try {
+						size = (path.length > 1) ? Integer.parseInt(path[1]) : -1;
+					} catch (NumberFormatException e) {
+						// Answered with a 404 below
+					}
+
+					if (size < 0 || size > body.length) {
+						out.write("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n"
+								.getBytes(StandardCharsets.ISO_8859_1));
+					} else {
+						out.write(("HTTP/1.1 200 OK\r\nContent-Type: application/octet-stream\r\n"
+								+ "Cache-Control: max-age=3600\r\nContent-Length: " + size
+								+ (close ? "\r\nConnection: close" : "") + "\r\n\r\n")
+								.getBytes(StandardCharsets.ISO_8859_1));
+						out.write(body, 0, size);
+					}
+					out.flush();
+
+					if (close) {
+						break;
+					}
+				}
+			} catch (IOException e) {
+				// Client went away
+			} finally {
+				closeQuietly(connection);
+			}
+		}
+	}
+
+	/**
+	 * Something to time, run in a tight loop.
+	 */
+	interface Operation {
+		long run(int i);
+	}
+
+	/**
+	 * Times the request parsing and cache lookup paths on their own. Each
+	 * operation is run unmeasured until the JIT has compiled it, then timed
+	 * over several rounds; the fastest round is the one least disturbed by
+	 * GC and the rest of the machine.
+	 */
+	private static void runMicrobenchmarks() {
+		final byte[] request = ("GET http://www.example.com/images/logo.png HTTP/1.1\r\n"
+				+ "Host: www.example.com\r\n"
+				+ "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/115.0\r\n"
+				+ "Accept: image/avif,image/webp,*/*\r\n"
+				+ "Accept-Language: en-US,en;q=0.5\r\n"
+				+ "Accept-Encoding: gzip, deflate, br\r\n"
+				+ "Connection: keep-alive\r\n"
+				+ "Referer: http://www.example.com/\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+		final String requestText = new String(request, StandardCharsets.ISO_8859_1);
+		final WebProxy.HeadParser parser = new WebProxy.HeadParser();
+
+		final int keys = 10000;
+		final String[] uris = new String[keys];
+		final ConcurrentHashMap<String, WebProxy.CacheEntry> cache = new ConcurrentHashMap<String, WebProxy.CacheEntry>();
+		final WebProxy.MemoryCache memoryCache = new WebProxy.MemoryCache(64L * 1024 * 1024, 1024 * 1024);
+		final WebProxy.HttpHead cachedHead = WebProxy.HttpHead.parse("HTTP/1.1 200 OK\r\n"
+				+ "Content-Type: image/png\r\nCache-Control: max-age=3600\r\nETag: \"abc\"\r\n\r\n");
+		final WebProxy.HttpHead clientRequest = WebProxy.HttpHead.parse(requestText);
+		long now = System.currentTimeMillis();
+
+		for (int i = 0; i < keys; i++) {
+			uris[i] = "http://www.example.com/objects/" + i + ".png";
+			cache.put(uris[i], new WebProxy.CacheEntry("cache/" + i, cachedHead, 4096, "", now, now));
+			memoryCache.put(uris[i], new byte[4096]);
+		}
+		final WebProxy.LatencyHistogram histogram = new WebProxy.LatencyHistogram();
+
+		System.out.println(String.format("%-28s %12s %12s", "operation", "best_ns/op", "mean_ns/op"));
+
+		measure("HeadParser.parse", new Operation() {
+			@Override
+			public long run(int i) {
+				parser.reset();
+				parser.parse(request, 0, request.length);
+				return parser.head().get("Host").length();
+			}
+		});
+		measure("HttpHead.parse", new Operation() {
+			@Override
+			public long run(int i) {
+				return WebProxy.HttpHead.parse(requestText).get("Accept-Encoding").length();
+			}
+		});
+		measure("HttpHead.toBytes", new Operation() {
+			@Override
+			public long run(int i) {
+				return clientRequest.toBytes().length;
+			}
+		});
+		measure("cache lookup", new Operation() {
+			@Override
+			public long run(int i) {
+				WebProxy.CacheEntry entry = cache.get(uris[i % keys]);
+				return (entry != null && entry.canServe(clientRequest) && entry.isFresh(System.currentTimeMillis()))
+						? entry.length : 0;
+			}
+		});
+		measure("MemoryCache.get", new Operation() {
+			@Override
+			public long run(int i) {
+				byte[] value = memoryCache.get(uris[i % keys]);
+				return (value != null) ? value.length : 0;
+			}
+		});
+		measure("LatencyHistogram.record", new Operation() {
+			@Override
+			public long run(int i) {
+				histogram.record(i & 0xFFFF);
+				return i;
+			}
+		});
+		System.out.println();
+	}
+
+	private static void measure(String name, Operation operation) {
+		/** Warm up for about as long as one round, without timing **/
+		long iterations = calibrate(operation);
+		double best = Double.MAX_VALUE;
+		double total = 0;
+
+		for (int round = 0; round < MICRO_ROUNDS; round++) {
+			long result = 0;
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				result += operation.run(i);
+			}
+			double perOperation = (double) (System.nanoTime() - start) / iterations;
+			sink += result;
+
+			best = Math.min(best, perOperation);
+			total += perOperation;
+		}
+
+		System.out.println(String.format("%-28s %12.1f %12.1f", name, best, total / MICRO_ROUNDS));
+	}
+
+	/**
+	 * Runs an operation for one round's worth of time and returns how many
+	 * iterations that took.
+	 */
+	private static long calibrate(Operation operation) {
+		long iterations = 0;
+		long result = 0;
+		long start = System.nanoTime();
+		while (System.nanoTime() - start < MICRO_ROUND_NANOS) {
+			for (int i = 0; i < 1000; i++) {
+				result += operation.run(i);
+			}
+			iterations += 1000;
+		}
+		sink += result;
+		return Math.min(iterations, Integer.MAX_VALUE);
+	}
+
+	private static int[] parseInts(String list) {
+		String[] parts = list.split(",");
+		int[] values = new int[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			values[i] = Integer.parseInt(parts[i].trim());
+		}
+		return values;
+	}
+
+	private static double[] parseDoubles(String list) {
+		String[] parts = list.split(",");
+		double[] values = new double[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			values[i] = Double.parseDouble(parts[i].trim());
+		}
+		return values;
+	}
+
+	private static int max(int[] values) {
+		int max = 0;
+		for (int value : values) {
+			max = Math.max(max, value);
+		}
+		return max;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException e) {
+				// Nothing more to do
+			}
+		}
+	}
+}
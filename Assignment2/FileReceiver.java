@@ -1,152 +1,188 @@
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.zip.CRC32;
 
 public class FileReceiver {
 	private static final int DATA_SIZE = 1000;
-	private static final int HEADER_SIZE = 16;
+	private static final int HEADER_SIZE = 20;
 	private static final int CHECKSUM_SIZE = 8;
-	private static final int TIMEOUT = 5;
+	private static final int SACK_WORDS = 4;	// Bitmap of the 256 packets after an ack
 	
-	private static final String SUCCESSFUL_MSG = "SUCCESSFUL";
-	private static final String TERMINATE_MSG = "TERMINATE";
+	// Acks are sent from the receive loop as packets arrive. One for packets
+	// in order covers up to ACK_EVERY of them, or waits at most ACK_DELAY
+	// (ms) for the next; one for a packet out of order, repeated or filling a
+	// hole goes at once, so the sender hears of a loss straight away.
+	private static final int ACK_EVERY = 2;
+	private static final int ACK_DELAY = 1;
+	private static final int WRITE_QUEUE_SIZE = 1024;
+	
+	// Packets are received straight into slabs of DATA_SIZE bytes, which go
+	// from the socket to the reorder window to the writer and back to the
+	// pool, so none is allocated per packet. The window holds packets up to
+	// REORDER_SLOTS (a power of two above the sender's window) ahead of the
+	// next to write.
+	private static final int REORDER_SLOTS = 512;
+	private static final int SLABS = REORDER_SLOTS + WRITE_QUEUE_SIZE + 1;
+	private static final int NUMBER_OFFSET = CHECKSUM_SIZE + 4;
+	private static final int LENGTH_OFFSET = CHECKSUM_SIZE + 8;
+	
+	// Every data packet but the last of a range is full, so a packet's
+	// place in the file follows from its number
+	private static final int PAYLOAD_SIZE = DATA_SIZE - HEADER_SIZE;
+	
+	// Each transfer is a session, told apart by the id its sender picks and
+	// the address it sends from. Sessions share the socket and WRITERS
+	// threads to write their files. A finished one is kept FINISHED_LINGER
+	// (ms) past its last packet, to answer a sender that missed the
+	// TERMINATE ack, and so is one whose file could not be written, to tell
+	// its sender so. One silent for IDLE_TIMEOUT is dropped and its file
+	// closed, left as far as it was written.
+	private static final int WRITERS = 4;
+	private static final int FINISHED_LINGER = 5000;
+	private static final int IDLE_TIMEOUT = 30000;
+	
+	private static final byte[] SUCCESSFUL_MSG = "SUCCESSFUL".getBytes();
+	private static final byte[] TERMINATE_MSG = "TERMINATE".getBytes();
+	private static final byte[] ABORTED_MSG = "ABORTED".getBytes();
 	
-	private int _lastPacketNumber = -1;
-	private int _currentWriteNumber = 0;
-	private int _currentAckNumber = 0;
-	private int _prevWriteNumber = -1;
-	private int _prevAckNumber = -1;
 	private int _port;
 	
-	private SocketAddress _prevAckAddress = null;
-	private SocketAddress _lastPacketAddress = null;
+	// Owned by the receive loop: the sessions under way, and the earliest
+	// time one of them has an ack or expiry due
+	private HashMap<SessionKey, Session> _sessions = new HashMap<SessionKey, Session>();
+	private SessionKey _lookupKey = new SessionKey();
+	private long _nextDeadline = Long.MAX_VALUE;
 	
-	private boolean _isFinish = false;
-	//private ConcurrentHashMap<Integer, byte[]> _receivedPackets = new ConcurrentHashMap<Integer, byte[]>();
-	private ConcurrentSkipListMap<Integer, byte[]> _receivedPackets = new ConcurrentSkipListMap<Integer, byte[]>();
-	private ConcurrentSkipListMap<Integer, SocketAddress> _addresses = new ConcurrentSkipListMap<Integer, SocketAddress>();
+	// Slabs free to receive into. More are made should sessions hold them
+	// all; those beyond SLABS are dropped as they come back.
+	private BlockingQueue<ByteBuffer> _freeSlabs = new ArrayBlockingQueue<ByteBuffer>(SLABS);
+	private ExecutorService _writers = Executors.newFixedThreadPool(WRITERS);
 	
 	private CRC32 _crc = new CRC32();
 	
+	// Ack buffers, guarded by sendAck
+	private CRC32 _ackCrc = new CRC32();
+	private byte[] _reply = new byte[DATA_SIZE];
+	private ByteBuffer _replyBuffer = ByteBuffer.wrap(_reply);
+	private DatagramPacket _ackPacket = new DatagramPacket(_reply, _reply.length);
+	
 	private DatagramSocket _socket;
 	
 	public FileReceiver(int port) {
 		_port = port;
+		
+		for (int i = 0; i < SLABS; i++) {
+			_freeSlabs.add(ByteBuffer.wrap(new byte[DATA_SIZE]));
+		}
 	}
 	
 	public void receive() throws Exception {
 		// Receive package variables
 		_socket = new DatagramSocket(_port);
-
-		// Receive data variables
-		byte[] data = new byte[DATA_SIZE];
-		DatagramPacket packet = new DatagramPacket(data, data.length);
-		ByteBuffer buffer = ByteBuffer.wrap(data);
-		
-		// File variables
-		BufferedOutputStream toFile = null;
-		
-		WriteThread writeThread = new WriteThread();
-		writeThread.start();
 		
-		ACKThread ackThread = new ACKThread();
-		ackThread.start();
+		// Receive data variables
+		ByteBuffer buffer = takeSlab();
+		DatagramPacket packet = new DatagramPacket(buffer.array(), DATA_SIZE);
 		
 		System.out.println("START");
-
+		
 		while (true) {
 			try {
-				if (_isFinish) {
-					_socket.setSoTimeout(TIMEOUT);
-					sendAck(_lastPacketNumber, true, _lastPacketAddress);
+				// Block until a packet arrives or a session has something due
+				long now = System.currentTimeMillis();
+				if (now >= _nextDeadline) {
+					sweep(now);
+				}
+				
+				if (_nextDeadline == Long.MAX_VALUE) {
+					_socket.setSoTimeout(0);
+				} else {
+					_socket.setSoTimeout((int) Math.max(_nextDeadline - now, 1));
 				}
 				
-				packet.setLength(data.length);
+				packet.setData(buffer.array());
 				_socket.receive(packet);
-
+				
 				if (packet.getLength() < HEADER_SIZE) {
 					System.out.println("Error: Packet is too short!");
 					continue;
 				}
-
+				
 				buffer.rewind();
 				
 				long checksum = buffer.getLong();	// Get checksum
+				int id = buffer.getInt();			// Get session id
 				int number = buffer.getInt();		// Get sequence number
 				int byteWrite = buffer.getInt();	// Get number of bytes to write
-				byte[] content = null;
-
-
-				// Read the content from data
-				if (byteWrite > 0) {
-					content = Arrays.copyOfRange(data, HEADER_SIZE, HEADER_SIZE + byteWrite);
-				} else {				// Terminal package
-					content = Arrays.copyOfRange(data, HEADER_SIZE, data.length);
+				
+				if(isCorrupted(checksum, buffer.array())) {
+					continue;
 				}
-
-				if(!isCorrupted(checksum, data)) {
-					if (byteWrite == -1) {
-						_lastPacketNumber = number;
-					} 
-					
-					// Discard repeated package
-					int prevWriteNumber = _currentWriteNumber - 1;
-					boolean isWrite = (number < prevWriteNumber);
-					if (!_receivedPackets.containsKey(number) && !isWrite) {
-						while (!_receivedPackets.containsKey(number)) {
-							_receivedPackets.put(number, content);
-						}
-						
-						while (!_addresses.containsKey(number)) {
-							_addresses.put(number, packet.getSocketAddress());
-						}
-					}
-					
+				
+				// Look the session up by a key reused for every packet; only a
+				// new session gets one of its own
+				_lookupKey.set(id, packet.getAddress(), packet.getPort());
+				Session session = _sessions.get(_lookupKey);
+				if (session == null) {
+					SessionKey key = new SessionKey();
+					key.set(id, packet.getAddress(), packet.getPort());
+					session = new Session(key);
+					_sessions.put(key, session);
+				}
+				
+				// Receive the next packet into a fresh slab if the session
+				// kept this one
+				if (session.receive(number, byteWrite, buffer, System.currentTimeMillis())) {
+					buffer = takeSlab();
 				}
+				_nextDeadline = Math.min(_nextDeadline, session.deadline());
 			} catch (SocketTimeoutException e) {
-				reset();
+				// Something is due; the sweep sees to it
 			} catch (Exception e) {
 				e.printStackTrace();
-			} finally {
-				if (toFile != null) {
-					toFile.close();
-				}
 			}
-		} 
+		}
 	}
 	
-	private void reset() {
-		try {
-			_socket.setSoTimeout(0);
-			
-			_isFinish = false;
-			_lastPacketNumber = -1;
-			_lastPacketAddress = null;
-			
-			_currentWriteNumber = 0;
-			_currentAckNumber = 0;
-			
-			_prevWriteNumber = -1;
-			_prevAckNumber = -1;
-			_prevAckAddress = null;
-			
-			_receivedPackets.clear();
-			_addresses.clear();
-			
-			System.out.println("reset");
-		} catch (Exception e) {
+	/**
+	 * Sends the acks due, drops the sessions that are over, and works out
+	 * when the next thing is due.
+	 */
+	private void sweep(long now) throws Exception {
+		_nextDeadline = Long.MAX_VALUE;
+		
+		for (Iterator<Session> sessions = _sessions.values().iterator(); sessions.hasNext();) {
+			Session session = sessions.next();
 			
+			if (!session.tick(now)) {
+				sessions.remove();
+			} else {
+				_nextDeadline = Math.min(_nextDeadline, session.deadline());
+			}
 		}
 	}
 	
+	private ByteBuffer takeSlab() {
+		ByteBuffer slab = _freeSlabs.poll();
+		return (slab != null) ? slab : ByteBuffer.wrap(new byte[DATA_SIZE]);
+	}
+	
 	private boolean isCorrupted(long checksum, byte[] data) {
 		_crc.reset();
 		_crc.update(data, CHECKSUM_SIZE, data.length - CHECKSUM_SIZE);
@@ -158,123 +194,418 @@ public class FileReceiver {
 		return true;
 	}
 	
-	private void sendAck(int number, boolean isTerminated, SocketAddress address) throws Exception {
-		String messageStr = SUCCESSFUL_MSG;
-		String terminalStr = TERMINATE_MSG;
-		byte[] message; 
-		
-		if (!isTerminated) {
-			message = messageStr.getBytes();
-		} else {
-			message = terminalStr.getBytes();
-		}
-		
-		byte[] reply = new byte[DATA_SIZE];
-		ByteBuffer buffer = ByteBuffer.wrap(reply);
+	/**
+	 * Sends an ack for a session, from the receive loop or, for the final
+	 * one, a writer. Only the receive loop sends the bitmap, with
+	 * SUCCESSFUL_MSG, as it reads the session's reorder window.
+	 */
+	private synchronized void sendAck(Session session, int number, byte[] message) throws Exception {
+		ByteBuffer buffer = _replyBuffer;
+		Arrays.fill(_reply, (byte) 0);
 		
 		buffer.clear();
 		buffer.putLong(0);
+		buffer.putInt(session._key._id);
 		buffer.putInt(number);
 		buffer.putInt(message.length);
+		buffer.put(message);
 		
-		for (int i = 0; i < message.length; i++) {
-			reply[HEADER_SIZE + i] = message[i];
+		// Selectively acknowledge the packets after number that have arrived,
+		// so the sender resends only the ones that have not
+		if (message == SUCCESSFUL_MSG) {
+			for (int i = 0; i < SACK_WORDS; i++) {
+				buffer.putLong(session._receivedPackets.presence(number + 1 + i * 64));
+			}
 		}
 		
-		_crc.reset();
-		_crc.update(reply, CHECKSUM_SIZE, reply.length - CHECKSUM_SIZE);
+		_ackCrc.reset();
+		_ackCrc.update(_reply, CHECKSUM_SIZE, _reply.length - CHECKSUM_SIZE);
 		
 		buffer.rewind();
-		buffer.putLong(_crc.getValue());
+		buffer.putLong(_ackCrc.getValue());
 		
-		DatagramPacket ackPacket = new DatagramPacket(reply, reply.length, address);
-		_socket.send(ackPacket);
+		_ackPacket.setSocketAddress(session._address);
+		_socket.send(_ackPacket);
 	}
 	
-	private class ACKThread extends Thread {
+	/**
+	 * A session's id and the address and port its packets come from. Keys
+	 * in the session map are never set again once put.
+	 */
+	private static class SessionKey {
+		private int _id;
+		private InetAddress _address;
+		private int _port;
+		
+		void set(int id, InetAddress address, int port) {
+			_id = id;
+			_address = address;
+			_port = port;
+		}
+		
 		@Override
-		public void run() {			
-			while (true) {
-				try {					
-					int tempWriteNumber = _currentWriteNumber - 1;
-					
-					if (!_isFinish) {
-						if ((tempWriteNumber == _prevWriteNumber) && (_prevAckAddress != null)) {
-							sendAck(_prevAckNumber, false, _prevAckAddress);
-							//System.out.println("**repeated ack number: " + _currentAckNumber);
-							Thread.sleep(20);
-							continue;
-						}
-
-						if (_currentAckNumber != _lastPacketNumber) {
-							for (; _currentAckNumber < tempWriteNumber; _currentAckNumber++) {						
-								if (_currentAckNumber == (tempWriteNumber - 1)) {
-									sendAck(_currentAckNumber, false, _addresses.get(_currentAckNumber));
-									_prevWriteNumber = tempWriteNumber;
-									_prevAckNumber = _currentAckNumber;
-									_prevAckAddress = _addresses.get(_currentAckNumber);
-								}
-								_addresses.remove(_currentAckNumber);
-							}
-						}
-					}
-					
-					Thread.sleep(20);
-				} catch (Exception e) {
-					//e.printStackTrace();
-				}
+		public boolean equals(Object other) {
+			if (!(other instanceof SessionKey)) {
+				return false;
 			}
+			
+			SessionKey key = (SessionKey) other;
+			return (_id == key._id) && (_port == key._port) && _address.equals(key._address);
+		}
+		
+		@Override
+		public int hashCode() {
+			return (31 * _id + _port) * 31 + _address.hashCode();
 		}
 	}
 	
-	private class WriteThread extends Thread {
+	/**
+	 * One transfer. The receive loop reorders its packets and acks them; a
+	 * writer from the pool drains its write queue into the file, one writer
+	 * at a time, scheduled whenever packets are queued.
+	 */
+	private class Session implements Runnable {
+		private final SessionKey _key;
+		private final SocketAddress _address;
+		
+		// Owned by the receive loop: the next packet to hand to the writer,
+		// the packets that arrived ahead of it, how many have gone
+		// unacknowledged, and when the ack for them and the session are due
+		private int _nextNumber = 0;
+		private int _lastPacketNumber = -1;
+		private int _unackedPackets = 0;
+		private long _ackDue = Long.MAX_VALUE;
+		private long _lastHeard = 0;
+		private ReorderWindow _receivedPackets = new ReorderWindow(REORDER_SLOTS);
+		
+		// Packets for the writer, the file name first and the last packet
+		// last, and whether the file name is read, the file and where this
+		// session's range of it starts, touched only by the writer holding
+		// _isScheduled. _isFinish is set by the writer once the file is
+		// closed and the sender told; _isAborted by the writer if the file
+		// cannot be written, or by the receive loop if the sender goes quiet.
+		private BlockingQueue<ByteBuffer> _writeQueue = new ArrayBlockingQueue<ByteBuffer>(WRITE_QUEUE_SIZE);
+		private AtomicBoolean _isScheduled = new AtomicBoolean(false);
+		private boolean _hasHeader = false;
+		private FileChannel _toFile = null;
+		private long _offset = 0;
+		private volatile boolean _isFinish = false;
+		private volatile boolean _isAborted = false;
+		
+		Session(SessionKey key) {
+			_key = key;
+			_address = new InetSocketAddress(key._address, key._port);
+		}
+		
+		/**
+		 * Takes in a packet of this session. Returns whether the session kept
+		 * the slab it is in.
+		 */
+		boolean receive(int number, int byteWrite, ByteBuffer slab, long now) throws Exception {
+			_lastHeard = now;
+			
+			// The file could not be written; the sender has yet to hear
+			if (_isAborted) {
+				if (!_receivedPackets.isEmpty()) {
+					_receivedPackets.clear(_freeSlabs);
+				}
+				sendAck(this, _nextNumber - 1, ABORTED_MSG);
+				return false;
+			}
+			
+			// The sender has yet to hear that the file is done
+			if (isComplete()) {
+				if (_isFinish) {
+					sendAck(this, _lastPacketNumber, TERMINATE_MSG);
+				}
+				return false;
+			}
+			
+			// Repeated package: the ack for it may have been lost
+			if (number < _nextNumber || _receivedPackets.contains(number)) {
+				handOver();
+				acknowledge();
+				return false;
+			}
+			
+			// Too far ahead to hold, or malformed; the sender will send it again
+			if (number - _nextNumber >= REORDER_SLOTS || byteWrite < -1 || byteWrite > DATA_SIZE - HEADER_SIZE
+					|| (number == 0 && byteWrite < 16)) {
+				return false;
+			}
+			
+			if (byteWrite == -1) {
+				_lastPacketNumber = number;
+			}
+			
+			boolean isInOrder = (number == _nextNumber) && _receivedPackets.isEmpty();
+			
+			// Once the file name is with the writer, data can be written where
+			// it belongs as soon as it arrives; only the window's bit for it
+			// waits for the packets before it. The last packet closes the
+			// file, so it waits for them all. A packet the writer has no room
+			// for is dropped, unacknowledged, for the sender to send again,
+			// so a slow disk holds up only its own session.
+			if (_nextNumber > 0 && byteWrite != -1) {
+				if (!_writeQueue.offer(slab)) {
+					return false;
+				}
+				_receivedPackets.put(number, null);
+				schedule();
+			} else {
+				_receivedPackets.put(number, slab);
+			}
+			
+			boolean isHeld = !handOver();
+			
+			// The writer tells the sender once the file is closed
+			if (isComplete()) {
+				_unackedPackets = 0;
+				_ackDue = Long.MAX_VALUE;
+				_receivedPackets.clear(_freeSlabs);
+			} else if (!isInOrder || ++_unackedPackets >= ACK_EVERY) {
+				acknowledge();
+			} else if (_ackDue == Long.MAX_VALUE) {
+				_ackDue = now + ACK_DELAY;
+			}
+			
+			// Try the writer again shortly, in case the sender has nothing
+			// more to send until these are acknowledged
+			if (isHeld && _ackDue == Long.MAX_VALUE) {
+				_ackDue = now + ACK_DELAY;
+			}
+			return true;
+		}
+		
+		/**
+		 * Hands the writer every packet now in order that its queue has room
+		 * for. Returns whether none is left waiting for room.
+		 */
+		private boolean handOver() {
+			boolean isHanded = true;
+			
+			for (; _receivedPackets.contains(_nextNumber); _nextNumber++) {
+				ByteBuffer ready = _receivedPackets.remove(_nextNumber);
+				if (ready != null && !_writeQueue.offer(ready)) {
+					_receivedPackets.put(_nextNumber, ready);
+					isHanded = false;
+					break;
+				}
+			}
+			schedule();
+			return isHanded;
+		}
+		
+		/**
+		 * Sends the ack if it is due. Returns whether the session goes on:
+		 * not once it is finished, or aborted, and the sender quiet, or once
+		 * it is abandoned.
+		 */
+		boolean tick(long now) throws Exception {
+			if (_isAborted) {
+				return now - _lastHeard < FINISHED_LINGER;
+			}
+			
+			if (_ackDue <= now) {
+				boolean isHeld = !handOver();
+				acknowledge();
+				if (isHeld && !isComplete()) {
+					_ackDue = now + ACK_DELAY;
+				}
+			}
+			
+			if (isComplete() && now - _lastHeard >= FINISHED_LINGER) {
+				if (_isFinish) {
+					return false;
+				}
+				_lastHeard = now;	// Still being written
+			} else if (!isComplete() && now - _lastHeard >= IDLE_TIMEOUT) {
+				System.out.println("ABANDONED");
+				_receivedPackets.clear(_freeSlabs);
+				_isAborted = true;
+				schedule();
+				return false;
+			}
+			return true;
+		}
+		
+		long deadline() {
+			if (isComplete() || _isAborted) {
+				return _lastHeard + FINISHED_LINGER;
+			}
+			return Math.min(_ackDue, _lastHeard + IDLE_TIMEOUT);
+		}
+		
+		/**
+		 * Whether every packet up to the last has gone to the writer.
+		 */
+		private boolean isComplete() {
+			return (_lastPacketNumber >= 0) && (_nextNumber > _lastPacketNumber);
+		}
+		
+		private void acknowledge() throws Exception {
+			sendAck(this, _nextNumber - 1, SUCCESSFUL_MSG);
+			_unackedPackets = 0;
+			_ackDue = Long.MAX_VALUE;
+		}
+		
+		private void schedule() {
+			if (_isScheduled.compareAndSet(false, true)) {
+				_writers.execute(this);
+			}
+		}
+		
+		/**
+		 * Writes out what is queued, on a writer thread. Once the session is
+		 * aborted what is queued is dropped and the file closed.
+		 */
 		@Override
 		public void run() {
-			BufferedOutputStream toFile = null;
-			
-			while (true) {				
-				try {
-					if (_receivedPackets.containsKey(_currentWriteNumber)) {
-						byte[] content = _receivedPackets.get(_currentWriteNumber);
-						
-						if (_currentWriteNumber == 0) {	// If it is the packet which stores file name
-							reset();
-							String fileName = new String(content);
-							File file = new File(fileName);
-							//System.out.println("fileName: " + fileName);
-
-							toFile = new BufferedOutputStream(new FileOutputStream(file));
-							_receivedPackets.remove(_currentWriteNumber);
-							_currentWriteNumber += 1;
-						} else if (_currentWriteNumber != _lastPacketNumber) {
-							toFile.write(content);
-							_receivedPackets.remove(_currentWriteNumber);
-							_currentWriteNumber += 1;
-						} else {
-							if (toFile != null) {
-								toFile.close();
-							}
-							
-							_lastPacketAddress = _addresses.get(_lastPacketNumber);
-							
-							sendAck(_lastPacketNumber, true, _lastPacketAddress);
-							System.out.println("FINISH WRITING");
-							
-							// Reset
-							_currentWriteNumber = 0;
-							_currentAckNumber = 0;
-							_prevWriteNumber = -1;
-							_prevAckNumber = -1;
-							_isFinish = true;
-							_prevAckAddress = null;
-							_receivedPackets.clear();
-							_addresses.clear();
+			try {
+				for (ByteBuffer slab; (slab = _writeQueue.poll()) != null;) {
+					try {
+						if (!_isAborted) {
+							write(slab);
 						}
+					} catch (Exception e) {
+						e.printStackTrace();
+						System.out.println("ABORTED");
+						_isAborted = true;
+					} finally {
+						slab.clear();
+						_freeSlabs.offer(slab);
 					}
-				} catch (Exception e) {
-					e.printStackTrace();
+				}
+				
+				if (_isAborted && _toFile != null) {
+					FileChannel toFile = _toFile;
+					_toFile = null;
+					toFile.close();
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+			} finally {
+				// Packets queued since the last poll need another run
+				_isScheduled.set(false);
+				if (!_writeQueue.isEmpty() || (_isAborted && _toFile != null)) {
+					schedule();
+				}
+			}
+		}
+		
+		private void write(ByteBuffer slab) throws Exception {
+			int byteWrite = slab.getInt(LENGTH_OFFSET);
+			
+			if (!_hasHeader) {	// If it is the packet which stores file name
+				_hasHeader = true;
+				
+				// A transfer may be one of several striping a file; it says
+				// how long the whole file is and where its range starts
+				long fileSize = slab.getLong(HEADER_SIZE);
+				_offset = slab.getLong(HEADER_SIZE + 8);
+				
+				String fileName = new String(slab.array(), HEADER_SIZE + 16, byteWrite - 16);
+				File file = new File(fileName);
+				//System.out.println("fileName: " + fileName);
+				
+				// Every stripe sizes the file alike, so none cuts off another's
+				// writes, whichever opens it first
+				RandomAccessFile toFile = new RandomAccessFile(file, "rw");
+				_toFile = toFile.getChannel();
+				toFile.setLength(fileSize);
+			} else if (byteWrite != -1) {
+				long position = _offset + (long) (slab.getInt(NUMBER_OFFSET) - 1) * PAYLOAD_SIZE;
+				
+				slab.limit(HEADER_SIZE + byteWrite).position(HEADER_SIZE);
+				while (slab.hasRemaining()) {
+					position += _toFile.write(slab, position);
+				}
+			} else {
+				_toFile.close();
+				_toFile = null;
+				
+				// The receive loop set _lastPacketNumber before queueing the end
+				sendAck(this, _lastPacketNumber, TERMINATE_MSG);
+				_isFinish = true;
+				System.out.println("FINISH WRITING");
+			}
+		}
+	}
+	
+	/**
+	 * Packets that arrived ahead of the next in order, in a ring of slots
+	 * indexed by sequence number modulo its size, with a bitmap of the slots
+	 * in use. One already handed to the writer keeps its bit but no slab.
+	 * Holds numbers within one ring's length of each other.
+	 */
+	private static class ReorderWindow {
+		private final ByteBuffer[] _slots;
+		private final long[] _present;
+		private final int _mask;
+		private int _size = 0;
+		
+		ReorderWindow(int slots) {
+			_slots = new ByteBuffer[slots];
+			_present = new long[slots / 64];
+			_mask = slots - 1;
+		}
+		
+		boolean contains(int number) {
+			int slot = number & _mask;
+			return (_present[slot >>> 6] & (1L << slot)) != 0;
+		}
+		
+		boolean isEmpty() {
+			return _size == 0;
+		}
+		
+		void put(int number, ByteBuffer slab) {
+			int slot = number & _mask;
+			_slots[slot] = slab;
+			_present[slot >>> 6] |= 1L << slot;
+			_size += 1;
+		}
+		
+		/**
+		 * Removes and returns the packet numbered number, or null if it has
+		 * not arrived or has gone to the writer.
+		 */
+		ByteBuffer remove(int number) {
+			if (!contains(number)) {
+				return null;
+			}
+			
+			int slot = number & _mask;
+			ByteBuffer slab = _slots[slot];
+			_slots[slot] = null;
+			_present[slot >>> 6] &= ~(1L << slot);
+			_size -= 1;
+			return slab;
+		}
+		
+		/**
+		 * Which of the 64 packets from number on have arrived, one bit each.
+		 */
+		long presence(int number) {
+			int slot = number & _mask;
+			int shift = slot & 63;
+			long bits = _present[slot >>> 6] >>> shift;
+			
+			if (shift != 0) {
+				bits |= _present[((slot >>> 6) + 1) % _present.length] << (64 - shift);
+			}
+			return bits;
+		}
+		
+		void clear(BlockingQueue<ByteBuffer> pool) {
+			for (int slot = 0; slot < _slots.length; slot++) {
+				if (_slots[slot] != null) {
+					pool.offer(_slots[slot]);
+					_slots[slot] = null;
 				}
 			}
+			Arrays.fill(_present, 0);
+			_size = 0;
 		}
 	}
 	
@@ -284,7 +615,7 @@ public class FileReceiver {
 			System.err.println("Usage: FileReceiver <port>");
 			System.exit(-1);
 		}
-
+		
 		// Get the parameters
 		int port = Integer.parseInt(args[0]);
 		
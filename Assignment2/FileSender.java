@@ -1,54 +1,129 @@
-import java.io.BufferedInputStream;
 //import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 //import java.io.FileOutputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
-import java.util.List;
-import java.util.NavigableSet;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.zip.CRC32;
 
 public class FileSender {
     private static final int DATA_SIZE = 1000;
     private static final int CHECKSUM_SIZE = 8;
-    private static final int HEADER_SIZE = 16;
-    private static final int WINDOW_SIZE = 50;
-    private static final int WINDOW_BUFFER_SIZE = WINDOW_SIZE + 20;
+    private static final int HEADER_SIZE = 20;
     private static final String TERMINATE_MSG = "TERMINATE";
+    private static final String ABORTED_MSG = "ABORTED";
+    
+    // Congestion window bounds (packets). The window adapts between them to
+    // what the path carries; see CongestionWindow.
+    private static final int INITIAL_WINDOW = 4;
+    private static final int MIN_WINDOW = 2;
+    private static final int MAX_WINDOW = 256;
+    private static final int WINDOW_BUFFER_SIZE = MAX_WINDOW + 20;
+    
+    // Retransmission timing (ms). Each packet in flight is resent when its
+    // own timer runs out, not with the rest of the window. The timeout
+    // follows the measured round trip time; see RttEstimator.
+    private static final int TICK = 1;
+    private static final int INITIAL_RTO = 50;
+    private static final int MIN_RTO = 10;
+    private static final int MAX_RTO = 2000;
+    private static final int WHEEL_SLOTS = 256;
+    private static final int PACKET_SLOTS = 512;    // Power of two above WINDOW_BUFFER_SIZE
+    
+    // Round trip time above the least seen (ms) taken to mean a queue is
+    // building on the path, which shrinks the window like a loss does
+    private static final int DELAY_BUDGET = 50;
+    
+    // Share of the window kept after a loss, as in CUBIC: less drastic than
+    // halving, as random loss on a lossy link says little about congestion
+    private static final double DECREASE_FACTOR = 0.7;
+    
+    // Acks carry a bitmap of the packets after the cumulative ack that have
+    // arrived. A packet missing below one that arrived is resent once it
+    // has been out for a round trip and a half; sooner, packets the path
+    // merely reordered would be taken for lost.
+    private static final int SACK_WORDS = MAX_WINDOW / 64;
     
     private String _hostname;
     private String _filePath;
     private String _fileName;
     private int _port;
     
+    // The range of the file this sender carries: all of it, or one of the
+    // stripes a file is split into to send it over several streams at once
+    private long _fileSize;
+    private long _offset;
+    private long _length;
+    
+    // Tells this transfer's packets apart from others the receiver is
+    // taking in, along with the address they come from
+    private int _session = new Random().nextInt();
+    
     private CRC32 _crc = new CRC32();
-    private boolean _stopThread = false;
+    private volatile boolean _stopThread = false;
+    private volatile boolean _isAborted = false;
     
-    private int _currentAckNumber = -1;
+    private volatile int _currentAckNumber = -1;
     private int _prevAckNumber = -1;
     
     private ConcurrentSkipListMap<Integer, byte[]> _sentPackets = new ConcurrentSkipListMap<Integer, byte[]>();
+    private BlockingQueue<byte[]> _freePackets = new ArrayBlockingQueue<byte[]>(WINDOW_BUFFER_SIZE);
+    
+    // Next packet never sent yet, and for each packet in flight when it was
+    // last sent (us), how many times, and when it is next due to be resent
+    // (ms), indexed by sequence number modulo PACKET_SLOTS
+    private int _nextToSend = 0;
+    private long[] _sentTimes = new long[PACKET_SLOTS];
+    private int[] _transmissions = new int[PACKET_SLOTS];
+    private long[] _deadlines = new long[PACKET_SLOTS];
+    private TimerWheel _timers = new TimerWheel(WHEEL_SLOTS);
+    private long _startTime;
+    
+    // Packets the receiver has selectively acknowledged, by sequence number
+    // modulo PACKET_SLOTS, and the highest of them. Guarded by _signal, as
+    // are the round trip estimate and the congestion window.
+    private int[] _sackedNumbers = new int[PACKET_SLOTS];
+    private int _highestSacked = -1;
+    private boolean _sackChanged = false;
+    private RttEstimator _rtt = new RttEstimator();
+    private long _lastDelivery = 0;
+    private CongestionWindow _window = new CongestionWindow();
+    
+    // Wakes the sending loop when an ack arrives or a packet is read, and
+    // the read thread when the window moves
+    private final Object _signal = new Object();
     
     DatagramSocket socket;
+    DatagramPacket _packet;
     
-    public FileSender(String hostname, int port, String filePath, String fileName) {
+    public FileSender(String hostname, int port, String filePath, String fileName,
+            long fileSize, long offset, long length) {
         _hostname = hostname;
         _port = port;
         _filePath = filePath;
         _fileName = fileName;
+        _fileSize = fileSize;
+        _offset = offset;
+        _length = length;
     }
     
     private boolean send() throws Exception {
         // Sent package variables
         InetSocketAddress address = new InetSocketAddress(_hostname, _port);
         socket = new DatagramSocket();
+        _packet = new DatagramPacket(new byte[DATA_SIZE], DATA_SIZE, address);
+        _startTime = System.nanoTime();
+        Arrays.fill(_sackedNumbers, -1);
 
         // Thread variables
         ACKThread ackThread = new ACKThread();
@@ -62,25 +137,89 @@ public class FileSender {
         
         try {
             while (!_stopThread) {
-                if (_prevAckNumber != _currentAckNumber) {
-                	for (int i = _prevAckNumber; i <= _currentAckNumber; i++) {
-                		_sentPackets.remove(i);
-                	}
-                	_prevAckNumber = _currentAckNumber;
+                long now = now();
+                int ackNumber;
+                int highestSacked;
+                boolean sackChanged;
+                int window;
+                long holdoff;
+                
+                synchronized (_signal) {
+                    ackNumber = _currentAckNumber;
+                    highestSacked = _highestSacked;
+                    sackChanged = _sackChanged;
+                    _sackChanged = false;
+                    window = _window.size();
+                    holdoff = _rtt.smoothed() * 3 / 2;
+                }
+                
+                // Slide the window past everything acknowledged
+                if (_prevAckNumber != ackNumber) {
+                    for (int i = _prevAckNumber; i <= ackNumber; i++) {
+                        byte[] data = _sentPackets.remove(i);
+                        if (data != null) {
+                            _freePackets.offer(data);
+                        }
+                    }
+                    _prevAckNumber = ackNumber;
+                    
+                    synchronized (_signal) {
+                        _signal.notifyAll();
+                    }
                 }
                 
-                NavigableSet<Integer> keySet = _sentPackets.keySet();
-                List<Integer> sentNumbers = new ArrayList<Integer>(keySet);
+                // Send the packets the window has just let in
+                while (_nextToSend <= ackNumber + window) {
+                    byte[] data = _sentPackets.get(_nextToSend);
+                    if (data == null) {
+                        break;
+                    }
+                    transmit(_nextToSend, data, now);
+                    _nextToSend += 1;
+                }
                 
-                for (int i = 0; i < sentNumbers.size(); i++) {
-                    byte[] data = _sentPackets.get(sentNumbers.get(i));
+                // Resend the holes below the highest packet the receiver has.
+                // Finding one means a packet was lost: back off.
+                for (int number = ackNumber + 1; sackChanged && number < highestSacked && number < _nextToSend;
+                        number++) {
+                    byte[] data = _sentPackets.get(number);
                     
-                    if (data != null) {
-                        DatagramPacket packet = new DatagramPacket(data, data.length, address);
-                        socket.send(packet);
+                    if (data != null && !isSacked(number)
+                            && micros() - _sentTimes[number & (PACKET_SLOTS - 1)] >= holdoff) {
+                        synchronized (_signal) {
+                            _window.congested(ackNumber, _nextToSend - 1);
+                        }
+                        transmit(number, data, now);
+                    }
+                }
+                
+                // Resend only the packets whose timers have run out. Timers of
+                // acknowledged or since rearmed packets are stale and skipped.
+                for (long timer = _timers.poll(now); timer != -1; timer = _timers.poll(now)) {
+                    int number = TimerWheel.numberOf(timer);
+                    byte[] data = _sentPackets.get(number);
+                    
+                    if (data != null && number > ackNumber && !isSacked(number)
+                            && _deadlines[number & (PACKET_SLOTS - 1)] == TimerWheel.deadlineOf(timer)) {
+                        // While other packets are still getting through this is
+                        // one more loss; only a silent path calls for backing
+                        // right off
+                        synchronized (_signal) {
+                            if (micros() - _lastDelivery < _rtt.timeout()) {
+                                _window.congested(ackNumber, _nextToSend - 1);
+                            } else if (_window.timedOut(ackNumber, _nextToSend - 1)) {
+                                _rtt.backOff();
+                            }
+                        }
+                        transmit(number, data, now);
+                    }
+                }
+                
+                synchronized (_signal) {
+                    if (_currentAckNumber == ackNumber && !_sackChanged) {
+                        _signal.wait(TICK);
                     }
                 }
-                Thread.sleep(1);
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -89,10 +228,218 @@ public class FileSender {
             socket.close();
         }
         
-        return true;
+        return !_isAborted;
+    }
+    
+    /**
+     * Sends a packet and arms its retransmission timer.
+     */
+    private void transmit(int number, byte[] data, long now) throws IOException {
+        // Stamp the packet before it goes, as its ack can come back before
+        // send returns
+        int slot = number & (PACKET_SLOTS - 1);
+        long deadline;
+        synchronized (_signal) {
+            deadline = now + (_rtt.timeout() + 999) / 1000;
+            _sentTimes[slot] = micros();
+            _transmissions[slot] = (number == _nextToSend) ? 1 : _transmissions[slot] + 1;
+        }
+        _deadlines[slot] = deadline;
+        _timers.schedule(deadline, number);
+        
+        _packet.setData(data);
+        socket.send(_packet);
+    }
+    
+    /**
+     * Round trip of a packet just delivered, or -1 if it was sent more than
+     * once (Karn), when the ack could be for any of the copies. Called with
+     * _signal held.
+     */
+    private long roundTrip(int number, long now) {
+        int slot = number & (PACKET_SLOTS - 1);
+        return (_transmissions[slot] == 1) ? now - _sentTimes[slot] : -1;
+    }
+    
+    private boolean isSacked(int number) {
+        synchronized (_signal) {
+            return _sackedNumbers[number & (PACKET_SLOTS - 1)] == number;
+        }
+    }
+    
+    /**
+     * Milliseconds since the transfer started, the unit of the timer wheel.
+     */
+    private long now() {
+        return micros() / 1000;
+    }
+    
+    private long micros() {
+        return (System.nanoTime() - _startTime) / 1000;
+    }
+    
+    /**
+     * Smoothed round trip time and retransmission timeout, per Jacobson and
+     * Karels: the timeout is the smoothed round trip plus four times its
+     * mean deviation. Each timeout doubles it until the next sample. Times
+     * are in microseconds.
+     */
+    private static class RttEstimator {
+        private long _smoothed = -1;
+        private long _deviation = 0;
+        private long _least = Long.MAX_VALUE;
+        private long _timeout = INITIAL_RTO * 1000L;
+        
+        void sample(long rtt) {
+            if (_smoothed < 0) {
+                _smoothed = rtt;
+                _deviation = rtt / 2;
+            } else {
+                _deviation += (Math.abs(_smoothed - rtt) - _deviation) / 4;
+                _smoothed += (rtt - _smoothed) / 8;
+            }
+            _least = Math.min(_least, rtt);
+            
+            long timeout = _smoothed + Math.max(TICK * 1000L, 4 * _deviation);
+            _timeout = Math.max(MIN_RTO * 1000L, Math.min(timeout, MAX_RTO * 1000L));
+        }
+        
+        void backOff() {
+            _timeout = Math.min(_timeout * 2, MAX_RTO * 1000L);
+        }
+        
+        long timeout() {
+            return _timeout;
+        }
+        
+        long smoothed() {
+            return Math.max(_smoothed, TICK * 1000L);
+        }
+        
+        /**
+         * Whether round trips have grown well past the least seen, which
+         * means packets are queueing somewhere on the path.
+         */
+        boolean isQueueing() {
+            return _smoothed >= 0 && _smoothed - _least > DELAY_BUDGET * 1000L;
+        }
+    }
+    
+    /**
+     * Congestion window in packets, grown and shrunk additively and
+     * multiplicatively (AIMD). From INITIAL_WINDOW it grows by a packet for
+     * every packet delivered, doubling each round trip, up to the threshold
+     * where the last congestion was seen; beyond that by one packet per
+     * round trip. A loss, or queueing delay, cuts it to DECREASE_FACTOR of
+     * its size, and a timeout on a silent path drops it to MIN_WINDOW. One
+     * congestion event usually costs several packets, so it is only counted
+     * once per window: until everything sent before it has been
+     * acknowledged.
+     */
+    private static class CongestionWindow {
+        private double _size = INITIAL_WINDOW;
+        private double _threshold = MAX_WINDOW;
+        private int _recoveryPoint = -1;
+        
+        int size() {
+            return (int) _size;
+        }
+        
+        void acked(int count) {
+            for (int i = 0; i < count; i++) {
+                _size += (_size < _threshold) ? 1 : 1 / _size;
+            }
+            _size = Math.min(_size, MAX_WINDOW);
+        }
+        
+        boolean congested(int ackNumber, int lastSent) {
+            if (ackNumber < _recoveryPoint) {
+                return false;
+            }
+            
+            _threshold = Math.max(_size * DECREASE_FACTOR, MIN_WINDOW);
+            _size = _threshold;
+            _recoveryPoint = lastSent;
+            return true;
+        }
+        
+        boolean timedOut(int ackNumber, int lastSent) {
+            if (ackNumber < _recoveryPoint && _size <= MIN_WINDOW) {
+                return false;
+            }
+            
+            _threshold = Math.max(_size / 2, MIN_WINDOW);
+            _size = MIN_WINDOW;
+            _recoveryPoint = lastSent;
+            return true;
+        }
+    }
+    
+    /**
+     * Hashed timer wheel of retransmission deadlines, one slot per tick. An
+     * entry packs a deadline (ms since the transfer started) and a sequence
+     * number into a long, so arming a timer allocates nothing once the slots
+     * have grown. Deadlines more than a turn of the wheel away are seen early
+     * and left in their slot for a later turn.
+     */
+    private static class TimerWheel {
+        private final long[][] _slots;
+        private final int[] _sizes;
+        private long _currentTick = 0;
+        private int _index = 0;
+        
+        TimerWheel(int slots) {
+            _slots = new long[slots][4];
+            _sizes = new int[slots];
+        }
+        
+        void schedule(long deadline, int number) {
+            int slot = (int) (deadline % _slots.length);
+            if (_sizes[slot] == _slots[slot].length) {
+                _slots[slot] = Arrays.copyOf(_slots[slot], _sizes[slot] * 2);
+            }
+            _slots[slot][_sizes[slot]++] = (deadline << 32) | (number & 0xFFFFFFFFL);
+        }
+        
+        /**
+         * Removes and returns one timer due by now, or -1 if none is.
+         */
+        long poll(long now) {
+            while (_currentTick <= now) {
+                int slot = (int) (_currentTick % _slots.length);
+                long[] timers = _slots[slot];
+                
+                while (_index < _sizes[slot]) {
+                    long timer = timers[_index];
+                    if (deadlineOf(timer) <= now) {
+                        timers[_index] = timers[--_sizes[slot]];
+                        return timer;
+                    }
+                    _index += 1;
+                }
+                
+                _index = 0;
+                if (_currentTick == now) {
+                    break;
+                }
+                _currentTick += 1;
+            }
+            return -1;
+        }
+        
+        static long deadlineOf(long timer) {
+            return timer >>> 32;
+        }
+        
+        static int numberOf(long timer) {
+            return (int) timer;
+        }
     }
     
     private class ACKThread extends Thread {
+        // Its own, as the read thread checksums packets at the same time
+        private CRC32 _ackCrc = new CRC32();
+        
         @Override
         public void run() {
             byte[] data = new byte[DATA_SIZE];
@@ -110,24 +457,96 @@ public class FileSender {
                     buffer.rewind();
                     
                     long checksum = buffer.getLong();	// Get checksum
+                    int session = buffer.getInt();		// Get session id
                     int number = buffer.getInt();		// Get sequence number
                     int byteRead = buffer.getInt();		// Get number of bytes to write
                     byte[] content = null;
                     
                     // Read the content from data
-                    if (byteRead > 0) {
+                    if (byteRead > 0 && byteRead <= data.length - HEADER_SIZE) {
                         content = Arrays.copyOfRange(data, HEADER_SIZE, HEADER_SIZE + byteRead);
                     }
                     
-                    if (!isCorrupted(checksum, data)) {
+                    if (!isCorrupted(checksum, data) && session == _session && content != null) {
                         String message = new String(content);
                         
                         if (message.equals(TERMINATE_MSG)) {
                             _stopThread = true;
                             //System.out.println("TERMINATE");
-                        } 
+                        } else if (message.equals(ABORTED_MSG)) {
+                            // The receiver could not write the file
+                            _isAborted = true;
+                            _stopThread = true;
+                            continue;
+                        }
                         
-                        _currentAckNumber = Math.max(_currentAckNumber, number);
+                        synchronized (_signal) {
+                            long now = micros();
+                            int delivered = 0;
+                            long sample = Long.MAX_VALUE;
+                            boolean isAmbiguous = false;
+                            
+                            // Packets the cumulative ack covers that were not
+                            // selectively acknowledged before
+                            for (int acked = _currentAckNumber + 1; acked <= number; acked++) {
+                                if (_sackedNumbers[acked & (PACKET_SLOTS - 1)] != acked) {
+                                    long rtt = roundTrip(acked, now);
+                                    isAmbiguous |= (rtt < 0);
+                                    sample = (rtt < 0) ? sample : Math.min(sample, rtt);
+                                    delivered += 1;
+                                }
+                            }
+                            
+                            if (number > _currentAckNumber) {
+                                _currentAckNumber = number;
+                                _signal.notifyAll();
+                            }
+                            
+                            // Note the packets after it the receiver reports holding
+                            if (byteRead > 0 && packet.getLength() >= HEADER_SIZE + byteRead + SACK_WORDS * 8) {
+                                buffer.position(HEADER_SIZE + byteRead);
+                                
+                                for (int word = 0; word < SACK_WORDS; word++) {
+                                    long bits = buffer.getLong();
+                                    
+                                    for (; bits != 0; bits &= bits - 1) {
+                                        int sacked = number + 1 + word * 64 + Long.numberOfTrailingZeros(bits);
+                                        if (sacked <= _currentAckNumber
+                                                || _sackedNumbers[sacked & (PACKET_SLOTS - 1)] == sacked) {
+                                            continue;
+                                        }
+                                        
+                                        _sackedNumbers[sacked & (PACKET_SLOTS - 1)] = sacked;
+                                        _highestSacked = Math.max(_highestSacked, sacked);
+                                        _sackChanged = true;
+                                        long rtt = roundTrip(sacked, now);
+                                        isAmbiguous |= (rtt < 0);
+                                        sample = (rtt < 0) ? sample : Math.min(sample, rtt);
+                                        delivered += 1;
+                                    }
+                                }
+                                _signal.notifyAll();
+                            }
+                            
+                            // Time the round trip by the packet sent last, which
+                            // is the one that drew the ack. An ack that covers a
+                            // resent packet may have been drawn by the copy, and
+                            // others sent before it waited on it, so it is not
+                            // timed at all.
+                            if (!isAmbiguous && sample != Long.MAX_VALUE) {
+                                _rtt.sample(sample);
+                            }
+                            
+                            // Grow the window with what was delivered, unless
+                            // the round trip says the path is queueing
+                            if (delivered > 0) {
+                                _lastDelivery = now;
+                            }
+                            _window.acked(delivered);
+                            if (delivered > 0 && _rtt.isQueueing()) {
+                                _window.congested(_currentAckNumber, _nextToSend - 1);
+                            }
+                        }
                     }
                 } catch (SocketTimeoutException e) {
                     //e.printStackTrace();
@@ -138,10 +557,10 @@ public class FileSender {
         }
         
         private boolean isCorrupted(long checksum, byte[] data) {
-            _crc.reset();
-            _crc.update(data, CHECKSUM_SIZE, data.length - CHECKSUM_SIZE);
+            _ackCrc.reset();
+            _ackCrc.update(data, CHECKSUM_SIZE, data.length - CHECKSUM_SIZE);
             
-            if (checksum == _crc.getValue()) {
+            if (checksum == _ackCrc.getValue()) {
                 return false;
             }
             
@@ -152,19 +571,18 @@ public class FileSender {
     private class ReadThread extends Thread {
         @Override
         public void run() {
-            byte[] data = new byte[DATA_SIZE];
-            ByteBuffer buffer = ByteBuffer.wrap(data);
-            
             // File variables
             File file = new File(_filePath);
-            BufferedInputStream fromFile = null;
+            FileChannel fromFile = null;
             
             // Helper variables
             int count = 0;
             int byteRead = 0;
+            long position = _offset;
+            long end = _offset + _length;
             
             try {
-                fromFile = new BufferedInputStream(new FileInputStream(file));
+                fromFile = new FileInputStream(file).getChannel();
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -174,23 +592,47 @@ public class FileSender {
                 	while ((byteRead != -1) && (_sentPackets.size() < WINDOW_BUFFER_SIZE)) {
                         //System.out.println("START READ THREAD");
                         
-                    	buffer.clear();
+                        // Build each packet in its own buffer, reused once acked
+                        byte[] data = _freePackets.poll();
+                        if (data == null) {
+                            data = new byte[DATA_SIZE];
+                        }
+                        ByteBuffer buffer = ByteBuffer.wrap(data);
                     	
                         if (count == 0) {
-                            // Save file name into data
+                            // Save the file size, where the range starts and
+                            // the file name into data
                             byte[] fileName = _fileName.getBytes();
-                            byteRead = fileName.length;
+                            byteRead = 16 + fileName.length;
                             
-                            for (int i = 0; i < fileName.length; i++) {
-                                data[HEADER_SIZE + i] = fileName[i];
-                            }
+                            buffer.position(HEADER_SIZE);
+                            buffer.putLong(_fileSize);
+                            buffer.putLong(_offset);
+                            buffer.put(fileName);
                         } else {
-                            // Read from file and save to data
-                            byteRead = fromFile.read(data, HEADER_SIZE, data.length - HEADER_SIZE);
+                            // Read the next part of the range straight into the
+                            // packet. Packets are filled, as the receiver places
+                            // them by number; a short one ends the range.
+                            buffer.position(HEADER_SIZE);
+                            buffer.limit(HEADER_SIZE + (int) Math.min(data.length - HEADER_SIZE, end - position));
+                            
+                            int read = 0;
+                            while (buffer.hasRemaining() && (read = fromFile.read(buffer, position)) > 0) {
+                                position += read;
+                            }
+                            if (read < 0) {
+                                position = end;
+                            }
+                            
+                            byteRead = buffer.position() - HEADER_SIZE;
+                            if (byteRead == 0) {
+                                byteRead = -1;
+                            }
                         }
                         
-                        buffer.rewind();
+                        buffer.clear();
                         buffer.putLong(0);
+                        buffer.putInt(_session);
                         buffer.putInt(count);
                         buffer.putInt(byteRead);
                         
@@ -205,9 +647,19 @@ public class FileSender {
                         
                         
                         // Put data in to hashmap
-                        byte[] putData = data.clone();
-                        _sentPackets.put(count, putData);
+                        _sentPackets.put(count, data);
                         count += 1;
+                        
+                        synchronized (_signal) {
+                            _signal.notifyAll();
+                        }
+                    }
+                    
+                    // Window buffer is full, wait for acks to make room
+                    if (byteRead != -1) {
+                        synchronized (_signal) {
+                            _signal.wait(TICK);
+                        }
                     }
                     
                     if (byteRead == -1) {
@@ -226,8 +678,8 @@ public class FileSender {
     public static void main(String[] args) {
         
         // Check missing arguments
-        if (args.length != 4) {
-            System.err.println("Usage: FileSender <host name> <port> <source file> <dest file name>");
+        if (args.length != 4 && args.length != 5) {
+            System.err.println("Usage: FileSender <host name> <port> <source file> <dest file name> [streams]");
             System.exit(-1);
         }
         
@@ -236,17 +688,54 @@ public class FileSender {
         String hostname = args[0];
         String filePath = args[2];
         String fileName = args[3];
+        int streams = (args.length == 5) ? Math.max(Integer.parseInt(args[4]), 1) : 1;
+        
+        // Split the file into one contiguous range per stream, each sent by
+        // its own sender over its own socket and window
+        long fileSize = new File(filePath).length();
+        long stripe = (fileSize + streams - 1) / streams;
+        final FileSender[] senders = new FileSender[streams];
+        final boolean[] results = new boolean[streams];
+        Thread[] threads = new Thread[streams];
+        
+        for (int i = 0; i < streams; i++) {
+            long offset = Math.min(i * stripe, fileSize);
+            long length = Math.min(stripe, fileSize - offset);
+            senders[i] = new FileSender(hostname, port, filePath, fileName, fileSize, offset, length);
+            
+            final int stream = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        results[stream] = senders[stream].send();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+        }
         
-        FileSender sender = new FileSender(hostname, port, filePath, fileName);
         try {
             long startTime = System.currentTimeMillis();
-            boolean isSuccessful = sender.send();
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            
+            boolean isSuccessful = true;
+            for (int i = 0; i < streams; i++) {
+                threads[i].join();
+                isSuccessful &= results[i];
+            }
             long endTime = System.currentTimeMillis();
             double timeTaken = (endTime - startTime) / 1000.0;
             
             if (isSuccessful) {
                 System.out.println("TIME TAKEN: " + timeTaken + " s");
                 System.exit(-1);
+            } else {
+                System.err.println("Error: The receiver could not write " + fileName);
+                System.exit(-1);
             }
         } catch (Exception e) {
             e.printStackTrace();